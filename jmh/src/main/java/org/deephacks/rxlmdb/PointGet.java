@@ -0,0 +1,77 @@
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.DirectBuffer;
+import org.openjdk.jmh.annotations.*;
+import rx.Observable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point lookups of keys that exist. Run with -prof gc to compare the
+ * allocation rate per lookup, pooled and caller keys should not allocate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Measurement(iterations = 5)
+@Warmup(iterations = 10)
+@Fork(value = 2)
+public class PointGet {
+
+  static RangedRowsSetup setup = new RangedRowsSetup(PointGet.class);
+  static final DirectMapper<Integer> INT_MAPPER = (key, value) -> value.getInt(0);
+
+  @State(Scope.Thread)
+  public static class Keys {
+    public RxTx tx = setup.lmdb.readTx();
+    public byte[][] keys = new byte[128][];
+    public DirectBuffer direct = new DirectBuffer(ByteBuffer.allocateDirect(5));
+    public int i;
+
+    public Keys() {
+      for (int i = 0; i < keys.length; i++) {
+        DirectBuffer key = new DirectBuffer(new byte[5]);
+        key.putByte(0, (byte) 0);
+        key.putInt(1, i, ByteOrder.BIG_ENDIAN);
+        keys[i] = key.byteArray();
+      }
+    }
+
+    public byte[] next() {
+      return keys[i++ & (keys.length - 1)];
+    }
+
+    @TearDown
+    public void close() {
+      tx.abort();
+    }
+  }
+
+  @Setup
+  public void setup() {
+    setup.writeSmallKeyValue();
+  }
+
+  @Benchmark
+  public Integer pooled(Keys t) {
+    return setup.db.get(t.tx, INT_MAPPER, t.next());
+  }
+
+  @Benchmark
+  public Integer caller(Keys t) {
+    t.direct.putBytes(0, t.next());
+    return setup.db.get(t.tx, INT_MAPPER, t.direct);
+  }
+
+  @Benchmark
+  public byte[] bytes(Keys t) {
+    return setup.db.get(t.tx, t.next());
+  }
+
+  @Benchmark
+  public Integer observable(Keys t) {
+    return setup.db.get(t.tx, INT_MAPPER, Observable.just(t.next())).toBlocking().first();
+  }
+}
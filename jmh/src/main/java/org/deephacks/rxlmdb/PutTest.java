@@ -3,8 +3,6 @@ package org.deephacks.rxlmdb;
 import org.fusesource.lmdbjni.ByteUnit;
 import org.openjdk.jmh.annotations.*;
 import rx.Observable;
-import rx.subjects.PublishSubject;
-import rx.subjects.SerializedSubject;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -24,7 +22,6 @@ public class PutTest {
 
   static RxDb db;
   static RxLmdb lmdb;
-  static SerializedSubject<KeyValue, KeyValue> subject;
 
   static {
     try {
@@ -35,8 +32,6 @@ public class PutTest {
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
-    subject = PublishSubject.<KeyValue>create().toSerialized();
-    db.batch(subject.buffer(10, TimeUnit.NANOSECONDS, 4096));
   }
 
   @State(Scope.Thread)
@@ -75,15 +70,38 @@ public class PutTest {
       Observable.just(values[8])
     };
 
+    static final int USER_SIZE = 64;
+    static final byte[] FIRSTNAME = "name".getBytes();
+    static final byte[] LASTNAME = "lastname".getBytes();
+    static final byte[] EMAIL = "email@email.com".getBytes();
+
     RxTx tx = null;
     AtomicInteger counter = new AtomicInteger();
+    uk.co.real_logic.sbe.codec.java.DirectBuffer sbeBuffer =
+      new uk.co.real_logic.sbe.codec.java.DirectBuffer(new byte[0]);
+    generated.sbe.User user = new generated.sbe.User();
 
     public RxThread() {
     }
 
     public void batch() {
       int i = counter.incrementAndGet();
-      subject.onNext(values[i % 9]);
+      db.batch(values[i % 9]);
+    }
+
+    /**
+     * Encode straight into the page reserved by LMDB.
+     */
+    public void reserve() {
+      int i = counter.incrementAndGet();
+      db.put(values[i % 9].key(), USER_SIZE, value -> {
+        sbeBuffer.wrap(value.addressOffset(), value.capacity());
+        user.wrapForEncode(sbeBuffer, 0);
+        user.mobile(i);
+        user.putFirstname(FIRSTNAME, 0, FIRSTNAME.length);
+        user.putLastname(LASTNAME, 0, LASTNAME.length);
+        user.putEmail(EMAIL, 0, EMAIL.length);
+      });
     }
 
     public void put() {
@@ -104,6 +122,11 @@ public class PutTest {
     t.batch();
   }
 
+  @Benchmark
+  public void reserve(RxThread t) {
+    t.reserve();
+  }
+
   @Benchmark
   public void put(RxThread t) {
     t.put();
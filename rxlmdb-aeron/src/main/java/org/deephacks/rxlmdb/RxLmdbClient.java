@@ -7,6 +7,7 @@ import io.reactivesocket.aeron.client.AeronClientDuplexConnectionFactory;
 import org.reactivestreams.Publisher;
 import rx.Observable;
 import rx.RxReactiveStreams;
+import rx.subjects.AsyncSubject;
 
 import java.net.InetSocketAddress;
 import java.util.Arrays;
@@ -40,16 +41,15 @@ public class RxLmdbClient {
     return this;
   }
 
-  public void batch(KeyValue kv) {
-    if (kv == null || kv.key == null || kv.key.length == 0) {
-      return;
-    }
-    KeyValuePayload kvp = new KeyValuePayload(kv, OpType.PUT);
-    RxReactiveStreams.toObservable(reactiveSocket.fireAndForget(kvp))
-      .map(payload -> {
-        kvp.release();
-        return null;
-      }).subscribe();
+  /**
+   * Put a kv right away that the server batch with other concurrent puts.
+   * The result emit true when the kv has been committed or an error if it
+   * failed, which fire and forget could not report.
+   */
+  public Observable<Boolean> batch(KeyValue kv) {
+    AsyncSubject<Boolean> result = AsyncSubject.create();
+    put(kv).subscribe(result);
+    return result;
   }
 
   public Observable<Boolean> put(KeyValue kv) {
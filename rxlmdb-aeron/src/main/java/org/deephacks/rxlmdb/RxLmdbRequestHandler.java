@@ -5,21 +5,13 @@ import io.reactivesocket.RequestHandler;
 import org.reactivestreams.Publisher;
 import rx.Observable;
 import rx.RxReactiveStreams;
-import rx.subjects.PublishSubject;
-import rx.subjects.SerializedSubject;
 import uk.co.real_logic.agrona.concurrent.UnsafeBuffer;
 
-import java.util.List;
-import java.util.concurrent.TimeUnit;
-
 class RxLmdbRequestHandler extends RequestHandler implements Loggable {
   RxDb db;
-  SerializedSubject<KeyValue, KeyValue> subject = PublishSubject.<KeyValue>create().toSerialized();
-  Observable<List<KeyValue>> buffer = subject.buffer(10, TimeUnit.MICROSECONDS, 512);
 
   RxLmdbRequestHandler(RxDb db) {
     this.db = db;
-    this.db.batch(buffer);
   }
 
   @Override
@@ -27,11 +19,10 @@ class RxLmdbRequestHandler extends RequestHandler implements Loggable {
     UnsafeBuffer metadata = new UnsafeBuffer(payload.getMetadata());
     OpType type = OpType.values()[metadata.getInt(0)];
     if (type == OpType.PUT) {
-      db.put(KeyValuePayload.getKeyValue(payload));
-      return s -> {
-        s.onNext(Payloads.EMPTY_PAYLOAD);
-        s.onComplete();
-      };
+      // batched by the writer thread with other puts and acknowledged, or
+      // failed, when committed
+      return RxReactiveStreams.toPublisher(db.putAsync(KeyValuePayload.getKeyValue(payload))
+        .map(success -> Payloads.EMPTY_PAYLOAD));
     } else if (type == OpType.GET) {
       return s -> {
         byte[] key = KeyValuePayload.getByteArray(payload);
@@ -90,11 +81,15 @@ class RxLmdbRequestHandler extends RequestHandler implements Loggable {
     return s -> {
       OpType type = OpType.values()[payload.getMetadata().getShort()];
       if (type == OpType.PUT) {
-        subject.onNext(KeyValuePayload.getKeyValue(payload));
+        // there is no one to report to, but the error is not swallowed
+        db.putAsync(KeyValuePayload.getKeyValue(payload)).subscribe(success -> {}, throwable -> {
+          logger().error("Fire and forget put error.", throwable);
+          s.onError(throwable);
+        }, s::onComplete);
       } else {
         System.err.println(type + " not fireForget");
+        s.onComplete();
       }
-      s.onComplete();
     };
   }
 
@@ -3,6 +3,7 @@ package org.deephacks.rxlmdb;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import rx.Observable;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -60,11 +61,14 @@ public class CrudTest implements Base {
   @Test
   public void testBatch() throws InterruptedException {
     List<KeyValue> kvs = new ArrayList<>();
+    List<Observable<Boolean>> results = new ArrayList<>();
     for (int i = 0; i < 1000; i++) {
       KeyValue kv = Fixture.kv("batch", i);
       kvs.add(kv);
-      client.batch(kv);
+      results.add(client.batch(kv));
     }
+    // every put is acknowledged when committed
+    assertThat(Observable.merge(results).all(success -> success).toBlocking().first(), is(true));
 
     List<KeyValue> list = client.scan().filter(keyPrefix("batch"))
       .toList().toBlocking().first();
@@ -10,6 +10,7 @@ import org.deephacks.rxlmdb.DatabaseServiceGrpc.DatabaseServiceStub;
 import org.deephacks.rxlmdb.Rxdb.*;
 import rx.Observable;
 import rx.Subscriber;
+import rx.subjects.AsyncSubject;
 
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
@@ -63,24 +64,31 @@ public class RxDbGrpcClient {
     });
   }
 
-  public void batch(Observable<List<KeyValue>> values) {
+  /**
+   * Stream kvs to the server, which write them in batches. Values are
+   * subscribed to right away and the result, which is replayed to late
+   * subscribers, emit true when every kv has been committed or an error
+   * if any kv failed.
+   */
+  public Observable<Boolean> batch(Observable<List<KeyValue>> values) {
     if (values == null) {
-      return;
+      return Observable.just(false);
     }
+    AsyncSubject<Boolean> result = AsyncSubject.create();
     StreamObserver<PutMsg> batch = stub.batch(new StreamObserver<Empty>() {
       @Override
       public void onNext(Empty value) {
-
+        result.onNext(true);
       }
 
       @Override
       public void onError(Throwable t) {
-
+        result.onError(t);
       }
 
       @Override
       public void onCompleted() {
-
+        result.onCompleted();
       }
     });
 
@@ -105,6 +113,7 @@ public class RxDbGrpcClient {
         }
       }
     });
+    return result;
   }
 
   public Observable<Boolean> delete(byte[] key) {
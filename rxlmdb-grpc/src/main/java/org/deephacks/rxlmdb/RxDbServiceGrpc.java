@@ -8,10 +8,8 @@ import org.deephacks.rxlmdb.Rxdb.*;
 import org.fusesource.lmdbjni.LMDBException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import rx.Observable;
 import rx.Observer;
 import rx.subjects.PublishSubject;
-import rx.subjects.SerializedSubject;
 
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -19,6 +17,9 @@ import java.util.concurrent.TimeUnit;
 final class RxDbServiceGrpc implements DatabaseServiceGrpc.DatabaseService {
   private static final Logger logger = LoggerFactory.getLogger(RxDbServiceGrpc.class);
   private static final KeyRange.KeyRangeType[] TYPES = KeyRange.KeyRangeType.values();
+  /** max number of streamed kvs and time to wait for them before a batch is handed over */
+  private static final int BATCH_SIZE = 512;
+  private static final long BATCH_LINGER_MILLIS = 10;
   private RxLmdb lmdb;
   private RxDb db;
 
@@ -40,25 +41,38 @@ final class RxDbServiceGrpc implements DatabaseServiceGrpc.DatabaseService {
     }
   }
 
+  /**
+   * Kvs are written in batches as they arrive and the call is completed when
+   * every kv has been committed, or failed if any kv could not be written.
+   */
   @Override
   public StreamObserver<PutMsg> batch(StreamObserver<Empty> response) {
-    SerializedSubject<KeyValue, KeyValue> subject = PublishSubject.<KeyValue>create().toSerialized();
-    Observable<List<KeyValue>> buffer = subject.buffer(10, TimeUnit.NANOSECONDS, 512);
-    db.batch(buffer);
+    PublishSubject<KeyValue> values = PublishSubject.create();
+    db.batch(values.buffer(BATCH_LINGER_MILLIS, TimeUnit.MILLISECONDS, BATCH_SIZE))
+      .reduce(0, (failed, result) -> failed + result.getFailedKeys().size())
+      .subscribe(failed -> {
+        if (failed == 0) {
+          response.onNext(Empty.getDefaultInstance());
+          response.onCompleted();
+        } else {
+          response.onError(new StatusRuntimeException(Status.INTERNAL.withDescription(failed + " kvs failed")));
+        }
+      }, throwable -> response.onError(new StatusRuntimeException(Status.INTERNAL.withCause(throwable))));
+
     return new StreamObserver<PutMsg>() {
       @Override
       public void onNext(PutMsg msg) {
-        subject.onNext(new KeyValue(msg.getKey().toByteArray(), msg.getVal().toByteArray()));
+        values.onNext(new KeyValue(msg.getKey().toByteArray(), msg.getVal().toByteArray()));
       }
 
       @Override
       public void onError(Throwable t) {
-        subject.onError(t);
+        values.onError(t);
       }
 
       @Override
       public void onCompleted() {
-        subject.onCompleted();
+        values.onCompleted();
       }
     };
   }
@@ -107,14 +107,14 @@ public class CrudTest {
   public void testBatch() throws InterruptedException {
     List<KeyValue> kvs = new ArrayList<>();
     SerializedSubject<KeyValue, KeyValue> subject = PublishSubject.<KeyValue>create().toSerialized();
-    client.batch(subject.buffer(10, TimeUnit.NANOSECONDS, 512));
+    rx.Observable<Boolean> result = client.batch(subject.buffer(10, TimeUnit.NANOSECONDS, 512));
     for (int i = 0; i < 1000; i++) {
       KeyValue kv = Fixture.kv(i, i);
       kvs.add(kv);
       subject.onNext(kv);
     }
     subject.onCompleted();
-    Thread.sleep(1000);
+    assertTrue(result.toBlocking().first());
 
     List<KeyValue> list = client.scan()
       .toList().toBlocking().first();
@@ -129,9 +129,15 @@ public class CrudTest {
   public void testBatchServerFailure() throws InterruptedException {
     db.close();
     SerializedSubject<KeyValue, KeyValue> subject = PublishSubject.<KeyValue>create().toSerialized();
-    client.batch(subject.buffer(10, TimeUnit.NANOSECONDS, 512));
+    rx.Observable<Boolean> result = client.batch(subject.buffer(10, TimeUnit.NANOSECONDS, 512));
     subject.onNext(Fixture.kv(1, 1));
     subject.onCompleted();
+    try {
+      result.toBlocking().first();
+      fail("should fail");
+    } catch (StatusRuntimeException e) {
+      assertThat(e.getStatus().getCode(), is(Status.Code.INTERNAL));
+    }
   }
 
   @Test
@@ -17,8 +17,7 @@ public class ScanTest {
   public static void beforeClass() throws Exception {
     server = RxDbGrpcServer.builder().build();
     client = RxDbGrpcClient.builder().build();
-    client.batch(Observable.from(_1_to_9).buffer(10));
-    Thread.sleep(100);
+    client.batch(Observable.from(_1_to_9).buffer(10)).toBlocking().first();
   }
 
   @AfterClass
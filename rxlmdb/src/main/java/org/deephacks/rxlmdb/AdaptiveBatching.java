@@ -0,0 +1,101 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decide how many buffer entries the writer thread put in each transaction
+ * and how long it linger for more entries before committing.
+ * <p/>
+ * Commit latency is tracked as a moving average and compared against a
+ * target latency. Above target, batch size and linger time shrink. Below
+ * target, a backlog in the write buffer grow the batch size since bigger
+ * batches amortize the commit cost, while a lightly loaded buffer grow the
+ * linger time within what is left of the latency budget so that more
+ * writes share each commit.
+ * <p/>
+ * Only the writer thread update, other threads may read the current settings.
+ */
+final class AdaptiveBatching {
+  static final int MIN_BATCH = 1;
+  static final long LINGER_STEP_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+  final boolean adaptive;
+  final long targetNanos;
+  final int maxBatch;
+
+  volatile int batchSize;
+  volatile long lingerNanos;
+  volatile long latencyNanos;
+  volatile int queueDepth;
+  volatile long commits;
+  volatile long writes;
+
+  private AdaptiveBatching(boolean adaptive, long targetNanos, int maxBatch, int batchSize) {
+    this.adaptive = adaptive;
+    this.targetNanos = targetNanos;
+    this.maxBatch = maxBatch;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Always write as many entries as available up to max batch and never linger.
+   */
+  static AdaptiveBatching fixed(int maxBatch) {
+    return new AdaptiveBatching(false, 0, maxBatch, maxBatch);
+  }
+
+  static AdaptiveBatching adaptive(long targetNanos, int maxBatch) {
+    return new AdaptiveBatching(true, targetNanos, maxBatch, Math.max(MIN_BATCH, maxBatch / 8));
+  }
+
+  /**
+   * Called by the writer thread after each commit.
+   *
+   * @param entries number of buffer entries written in the transaction.
+   * @param latencyNanos time it took to write and commit the transaction.
+   * @param queueDepth number of entries left in the buffer after draining.
+   */
+  void update(int entries, long latencyNanos, int queueDepth) {
+    this.commits++;
+    this.writes += entries;
+    this.queueDepth = queueDepth;
+    long avg = this.latencyNanos == 0 ? latencyNanos : (this.latencyNanos * 3 + latencyNanos) / 4;
+    this.latencyNanos = avg;
+    if (!adaptive) {
+      return;
+    }
+    int size = batchSize;
+    long linger = lingerNanos;
+    if (avg > targetNanos) {
+      size = Math.max(MIN_BATCH, Math.min(size - 1, size * 3 / 4));
+      linger = linger / 2;
+    } else if (queueDepth > 0) {
+      // backlog, fill batches without waiting
+      size = Math.min(maxBatch, size + Math.max(1, size / 4));
+      linger = linger / 2;
+    } else if (entries < size) {
+      // light load, spend some of the latency budget waiting for more writes
+      long budget = (targetNanos - avg) / 2;
+      linger = Math.min(budget, Math.max(LINGER_STEP_NANOS, linger * 2));
+    }
+    batchSize = size;
+    lingerNanos = linger;
+  }
+
+  WriterMetrics metrics() {
+    return new WriterMetrics(batchSize, lingerNanos, latencyNanos, queueDepth, commits, writes);
+  }
+}
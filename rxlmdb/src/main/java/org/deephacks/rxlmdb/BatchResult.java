@@ -0,0 +1,75 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Acknowledgement of a batch written by the writer thread.
+ */
+public class BatchResult {
+  /** sequence of batches that never got committed */
+  public static final long NOT_COMMITTED = -1;
+
+  private final long sequence;
+  private final int count;
+  private final long latencyNanos;
+  private final List<byte[]> failedKeys;
+
+  BatchResult(long sequence, int count, long latencyNanos, List<byte[]> failedKeys) {
+    this.sequence = sequence;
+    this.count = count;
+    this.latencyNanos = latencyNanos;
+    this.failedKeys = failedKeys == null ? Collections.emptyList() : failedKeys;
+  }
+
+  /**
+   * Monotonically increasing sequence of the transaction that committed the
+   * batch or NOT_COMMITTED if the transaction failed or the batch was rejected,
+   * in which case all keys are reported as failed.
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  public boolean isCommitted() {
+    return sequence != NOT_COMMITTED;
+  }
+
+  /** number of kvs in the batch */
+  public int getCount() {
+    return count;
+  }
+
+  /** time it took to write and commit the transaction that contained the batch */
+  public long getLatencyNanos() {
+    return latencyNanos;
+  }
+
+  /** keys that could not be written */
+  public List<byte[]> getFailedKeys() {
+    return failedKeys;
+  }
+
+  @Override
+  public String toString() {
+    return "BatchResult{" +
+      "sequence=" + sequence +
+      ", count=" + count +
+      ", latencyNanos=" + latencyNanos +
+      ", failedKeys=" + failedKeys.size() +
+      '}';
+  }
+}
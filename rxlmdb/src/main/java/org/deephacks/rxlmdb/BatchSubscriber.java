@@ -0,0 +1,101 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+import rx.Subscriber;
+import rx.functions.Action1;
+import rx.subjects.ReplaySubject;
+import rx.subjects.SerializedSubject;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Hand over lists to the writer thread and emit a BatchResult for each
+ * list when it has been committed. Results are replayed to subscribers
+ * that subscribe after lists have been acknowledged.
+ *
+ * @param <T> type of list entries.
+ */
+class BatchSubscriber<T> extends Subscriber<List<T>> implements Loggable {
+  /** hand over a list to the writer with an acknowledgement callback */
+  final BiConsumer<List<T>, Action1<BatchResult>> handover;
+  /** key of an entry, reported when a list is rejected */
+  final Function<T, byte[]> key;
+  final SerializedSubject<BatchResult, BatchResult> result;
+  /** lists handed over to the writer that have not been acknowledged yet */
+  final AtomicInteger pending = new AtomicInteger();
+  final AtomicBoolean terminated = new AtomicBoolean();
+  volatile boolean done;
+  volatile Throwable error;
+
+  BatchSubscriber(BiConsumer<List<T>, Action1<BatchResult>> handover, Function<T, byte[]> key) {
+    this.handover = handover;
+    this.key = key;
+    this.result = ReplaySubject.<BatchResult>create().toSerialized();
+  }
+
+  @Override
+  public void onCompleted() {
+    done = true;
+    terminate();
+  }
+
+  @Override
+  public void onError(Throwable e) {
+    logger().error("Batch error.", e);
+    error = e;
+    onCompleted();
+  }
+
+  @Override
+  public void onNext(List<T> entries) {
+    if (entries.size() < 1) {
+      // nothing to acknowledge and acknowledging now could overtake pending lists
+      return;
+    }
+    pending.incrementAndGet();
+    try {
+      handover.accept(entries, this::acknowledge);
+    } catch (Throwable e) {
+      logger().error("Batch rejected.", e);
+      List<byte[]> keys = entries.stream()
+        .map(entry -> entry == null ? null : key.apply(entry))
+        .collect(Collectors.toList());
+      acknowledge(new BatchResult(BatchResult.NOT_COMMITTED, entries.size(), 0, keys));
+    }
+  }
+
+  private void acknowledge(BatchResult batchResult) {
+    result.onNext(batchResult);
+    pending.decrementAndGet();
+    terminate();
+  }
+
+  private void terminate() {
+    // only terminate once upstream is done and every list has been acknowledged
+    if (!done || pending.get() != 0 || !terminated.compareAndSet(false, true)) {
+      return;
+    }
+    if (error != null) {
+      result.onError(error);
+    } else {
+      result.onCompleted();
+    }
+  }
+}
@@ -0,0 +1,178 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.DirectBuffer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Blocked Bloom filter of keys held off heap. All bits of a key are set
+ * in a single block of 64 bytes, so a lookup touch one cache line. With
+ * 10 bits per expected key and 7 bits per key about 1% of the lookups of
+ * keys that do not exist are false positives, which grow as more keys
+ * than expected are added.
+ * <p/>
+ * Bits are set with compare and swap so that keys can be added and looked
+ * up concurrently. Keys are never removed, deleted keys are only false
+ * positives until the filter is rebuilt.
+ */
+final class BloomFilter {
+  static final int BLOCK_BYTES = 64;
+  static final int BITS_PER_KEY = 10;
+  static final int HASHES = 7;
+  private static final int MAGIC = 0x626c6f6f;
+  private static final long M = 0xc6a4a7935bd1e995L;
+
+  /** power of two */
+  final int blocks;
+  /** keep the memory reachable while the aligned view is used */
+  private final ByteBuffer memory;
+  private final DirectBuffer bits;
+
+  BloomFilter(long expectedKeys) {
+    long bytes = Math.max(1, expectedKeys) * BITS_PER_KEY / 8;
+    this.blocks = (int) Math.min(1 << 24, Long.highestOneBit(Math.max(1, bytes / BLOCK_BYTES) * 2 - 1));
+    this.memory = ByteBuffer.allocateDirect(blocks * BLOCK_BYTES + BLOCK_BYTES);
+    DirectBuffer buffer = new DirectBuffer(memory);
+    // align blocks to cache lines
+    long address = buffer.addressOffset();
+    long aligned = (address + BLOCK_BYTES - 1) & -BLOCK_BYTES;
+    this.bits = new DirectBuffer();
+    this.bits.wrap(aligned, blocks * BLOCK_BYTES);
+  }
+
+  void add(byte[] key) {
+    add(new DirectBuffer(key));
+  }
+
+  void add(DirectBuffer key) {
+    long hash = hash(key);
+    int block = block(hash);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 9) | 1;
+    for (int i = 0; i < HASHES; i++) {
+      int bit = (h1 + i * h2) & (BLOCK_BYTES * 8 - 1);
+      int index = block + (bit >>> 6) * 8;
+      long mask = 1L << (bit & 63);
+      long word;
+      do {
+        word = bits.getLongVolatile(index);
+      } while ((word & mask) == 0 && !bits.compareAndSetLong(index, word, word | mask));
+    }
+  }
+
+  boolean mightContain(byte[] key) {
+    return mightContain(new DirectBuffer(key));
+  }
+
+  /**
+   * @return false if the key has definitely never been added.
+   */
+  boolean mightContain(DirectBuffer key) {
+    long hash = hash(key);
+    int block = block(hash);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 9) | 1;
+    for (int i = 0; i < HASHES; i++) {
+      int bit = (h1 + i * h2) & (BLOCK_BYTES * 8 - 1);
+      if ((bits.getLongVolatile(block + (bit >>> 6) * 8) & (1L << (bit & 63))) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int block(long hash) {
+    return (int) (hash >>> 32 & (blocks - 1)) * BLOCK_BYTES;
+  }
+
+  /**
+   * Murmur inspired hash of the key that read 8 bytes at a time.
+   */
+  static long hash(DirectBuffer key) {
+    int length = key.capacity();
+    long h = length * M;
+    int i = 0;
+    for (; i + 8 <= length; i += 8) {
+      h = (h ^ mix(key.getLong(i, ByteOrder.LITTLE_ENDIAN))) * M;
+    }
+    long tail = 0;
+    for (; i < length; i++) {
+      tail = (tail << 8) | (key.getByte(i) & 0xff);
+    }
+    h = (h ^ mix(tail)) * M;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private static long mix(long k) {
+    k *= M;
+    k ^= k >>> 47;
+    return k * M;
+  }
+
+  /**
+   * Write the filter to a file together with the last transaction id of
+   * the environment, replacing any previous file atomically.
+   */
+  void save(Path path, long txnId) throws IOException {
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeLong(txnId);
+      out.writeInt(blocks);
+      byte[] block = new byte[BLOCK_BYTES];
+      for (int i = 0; i < blocks; i++) {
+        bits.getBytes(i * BLOCK_BYTES, block);
+        out.write(block);
+      }
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @return the saved filter or null if it is missing, sized for another
+   * number of keys or saved at another transaction than txnId, in which
+   * case keys may have been written since it was saved.
+   */
+  static BloomFilter load(Path path, long expectedKeys, long txnId) throws IOException {
+    if (!Files.exists(path)) {
+      return null;
+    }
+    BloomFilter filter = new BloomFilter(expectedKeys);
+    try (DataInputStream data = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      if (data.readInt() != MAGIC || data.readLong() != txnId || data.readInt() != filter.blocks) {
+        return null;
+      }
+      byte[] block = new byte[BLOCK_BYTES];
+      for (int i = 0; i < filter.blocks; i++) {
+        data.readFully(block);
+        filter.bits.putBytes(i * BLOCK_BYTES, block);
+      }
+    }
+    return filter;
+  }
+}
@@ -0,0 +1,412 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.BufferCursor;
+import org.fusesource.lmdbjni.ByteUnit;
+import org.fusesource.lmdbjni.Constants;
+import org.fusesource.lmdbjni.Transaction;
+import rx.Observable;
+import rx.Subscriber;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Properties;
+
+/**
+ * Load unsorted kvs that may not fit in memory.
+ * <p/>
+ * Input is collected in memory until the run size is reached, then sorted
+ * in key order and spilled to a memory mapped file in the work directory.
+ * When the input complete, runs are merged and written to the database in
+ * key order with APPEND, one transaction per chunk. Duplicate keys are
+ * resolved in favour of the kv that arrived last.
+ * <p/>
+ * A manifest in the work directory keep track of spilled runs and the last
+ * committed key. After a crash in the merge phase, {@link #resume()} with
+ * the same work directory continue after the last committed key without
+ * reading the input again. A crash in the spill phase start over.
+ */
+public class BulkLoader implements Loggable {
+  static final String MANIFEST = "manifest";
+  static final long DEFAULT_RUN_SIZE = ByteUnit.MEBIBYTES.toBytes(64);
+  static final int DEFAULT_CHUNK_SIZE = 100_000;
+  /** key length and value length */
+  static final int HEADER_SIZE = 8;
+
+  final RxDb db;
+  final Path dir;
+  final long runSize;
+  final int chunkSize;
+
+  private BulkLoader(Builder builder) {
+    this.db = builder.db;
+    this.dir = IoUtil.createPathOrTemp(builder.dir);
+    this.runSize = builder.runSize;
+    this.chunkSize = builder.chunkSize;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public Path getDir() {
+    return dir;
+  }
+
+  /**
+   * Load kvs into the database when subscribed, on the subscribing thread.
+   * Progress is emitted for every spilled run and committed chunk.
+   * <p/>
+   * Fail with an {@link IllegalStateException} if the work directory hold an
+   * unfinished load, which must be resumed or removed first.
+   */
+  public Observable<LoadProgress> load(Observable<KeyValue> values) {
+    return Observable.create((Subscriber<? super LoadProgress> subscriber) -> {
+      try {
+        if (Manifest.read(dir) != null) {
+          throw new IllegalStateException("Unfinished load in " + dir + ", resume it or use another directory");
+        }
+        complete(spill(values, subscriber), subscriber);
+      } catch (Throwable e) {
+        logger().error("Bulk load error.", e);
+        subscriber.onError(e);
+      }
+    });
+  }
+
+  /**
+   * Resume an unfinished load from the work directory when subscribed, on the
+   * subscribing thread, without reading the input again.
+   * <p/>
+   * Fail with an {@link IllegalStateException} if there is nothing to resume.
+   */
+  public Observable<LoadProgress> resume() {
+    return Observable.create((Subscriber<? super LoadProgress> subscriber) -> {
+      try {
+        Manifest manifest = Manifest.read(dir);
+        if (manifest == null) {
+          throw new IllegalStateException("No load to resume in " + dir);
+        }
+        complete(manifest, subscriber);
+      } catch (Throwable e) {
+        logger().error("Bulk load error.", e);
+        subscriber.onError(e);
+      }
+    });
+  }
+
+  private void complete(Manifest manifest, Subscriber<? super LoadProgress> subscriber) throws IOException {
+    merge(manifest, subscriber);
+    if (subscriber.isUnsubscribed()) {
+      // keep runs and manifest so that the load can be resumed
+      return;
+    }
+    manifest.delete();
+    subscriber.onNext(new LoadProgress(LoadProgress.Phase.DONE, manifest.read, manifest.runs.size(), manifest.written));
+    subscriber.onCompleted();
+  }
+
+  private Manifest spill(Observable<KeyValue> values, Subscriber<? super LoadProgress> subscriber) throws IOException {
+    Manifest manifest = new Manifest(dir);
+    List<KeyValue> run = new ArrayList<>();
+    long[] bytes = new long[1];
+    values.toBlocking().forEach(kv -> {
+      if (kv == null) {
+        throw new NullPointerException("Null kv after " + manifest.read + " kvs");
+      }
+      if (kv.keyBuffer() != null) {
+        // buffers may be reused by the producer
+        kv = new KeyValue(kv.keyBytes(), kv.valueBytes());
+      }
+      long size = HEADER_SIZE + (long) kv.key().length + kv.value().length;
+      if (size > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Key and value must be less than 2GB, was " + size);
+      }
+      // a run is mapped as one buffer and must stay below 2GB
+      if (bytes[0] + size > Integer.MAX_VALUE) {
+        writeRun(manifest, run, bytes[0], subscriber);
+        bytes[0] = 0;
+      }
+      run.add(kv);
+      manifest.read++;
+      bytes[0] += size;
+      if (bytes[0] >= runSize) {
+        writeRun(manifest, run, bytes[0], subscriber);
+        bytes[0] = 0;
+      }
+    });
+    if (!run.isEmpty()) {
+      writeRun(manifest, run, bytes[0], subscriber);
+    }
+    // runs are complete, from here on the load can be resumed
+    manifest.write();
+    return manifest;
+  }
+
+  /**
+   * Sort the run, drop all but the last kv of each key, write it to a new file
+   * and clear it.
+   */
+  private void writeRun(Manifest manifest, List<KeyValue> run, long bytes, Subscriber<? super LoadProgress> subscriber) {
+    // stable sort keep arrival order of equal keys
+    run.sort((kv1, kv2) -> DirectBufferComparator.compareKeys(kv1.key(), kv2.key()));
+    String name = "run-" + manifest.runs.size();
+    Path path = dir.resolve(name);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+      StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+      for (int i = 0; i < run.size(); i++) {
+        KeyValue kv = run.get(i);
+        if (i + 1 < run.size() && DirectBufferComparator.compareKeys(kv.key(), run.get(i + 1).key()) == 0) {
+          continue;
+        }
+        buffer.putInt(kv.key().length);
+        buffer.putInt(kv.value().length);
+        buffer.put(kv.key());
+        buffer.put(kv.value());
+      }
+      // mark the end of a run that shrunk because of duplicates
+      if (buffer.remaining() >= HEADER_SIZE) {
+        buffer.putInt(-1);
+      }
+      buffer.force();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    manifest.runs.add(name);
+    run.clear();
+    subscriber.onNext(new LoadProgress(LoadProgress.Phase.SPILL, manifest.read, manifest.runs.size(), 0));
+  }
+
+  private void merge(Manifest manifest, Subscriber<? super LoadProgress> subscriber) throws IOException {
+    PriorityQueue<Run> queue = new PriorityQueue<>();
+    for (int i = 0; i < manifest.runs.size(); i++) {
+      Run run = new Run(dir.resolve(manifest.runs.get(i)), i);
+      if (run.next(manifest.last)) {
+        queue.add(run);
+      }
+    }
+    List<KeyValue> chunk = new ArrayList<>(Math.min(chunkSize, 1024));
+    while (!queue.isEmpty() && !subscriber.isUnsubscribed()) {
+      Run run = queue.poll();
+      KeyValue kv = run.current;
+      // newest run win, skip the same key in older runs
+      while (!queue.isEmpty() && DirectBufferComparator.compareKeys(queue.peek().current.key(), kv.key()) == 0) {
+        Run older = queue.poll();
+        if (older.next(null)) {
+          queue.add(older);
+        }
+      }
+      if (run.next(null)) {
+        queue.add(run);
+      }
+      chunk.add(kv);
+      if (chunk.size() >= chunkSize) {
+        writeChunk(manifest, chunk);
+        subscriber.onNext(new LoadProgress(LoadProgress.Phase.MERGE, manifest.read, manifest.runs.size(), manifest.written));
+      }
+    }
+    if (!chunk.isEmpty() && !subscriber.isUnsubscribed()) {
+      writeChunk(manifest, chunk);
+      subscriber.onNext(new LoadProgress(LoadProgress.Phase.MERGE, manifest.read, manifest.runs.size(), manifest.written));
+    }
+  }
+
+  /**
+   * Keys are unique and increasing so they are appended as long as they are
+   * greater than the highest key already in the database.
+   */
+  private void writeChunk(Manifest manifest, List<KeyValue> chunk) throws IOException {
+    try (Transaction tx = db.lmdb.env.createWriteTransaction()) {
+      byte[] last;
+      try (BufferCursor cursor = db.db.bufferCursor(tx)) {
+        last = cursor.last() ? cursor.keyBytes() : null;
+      }
+      for (KeyValue kv : chunk) {
+        if (last == null || DirectBufferComparator.compareKeys(kv.key(), last) > 0) {
+          db.write(tx, kv, Constants.APPEND);
+          last = kv.key();
+        } else {
+          db.write(tx, kv, 0);
+        }
+      }
+      tx.commit();
+    }
+    manifest.written += chunk.size();
+    manifest.last = chunk.get(chunk.size() - 1).key();
+    manifest.write();
+    chunk.clear();
+  }
+
+  /**
+   * Sequential reader of a spilled run.
+   */
+  private static final class Run implements Comparable<Run> {
+    final MappedByteBuffer buffer;
+    final int index;
+    KeyValue current;
+
+    Run(Path path, int index) throws IOException {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+      this.index = index;
+    }
+
+    /**
+     * Move to the next kv with a key greater than after, if any.
+     */
+    boolean next(byte[] after) {
+      while (buffer.remaining() >= HEADER_SIZE) {
+        int keyLength = buffer.getInt();
+        if (keyLength < 0) {
+          break;
+        }
+        byte[] key = new byte[keyLength];
+        byte[] value = new byte[buffer.getInt()];
+        buffer.get(key);
+        buffer.get(value);
+        if (after == null || DirectBufferComparator.compareKeys(key, after) > 0) {
+          current = new KeyValue(key, value);
+          return true;
+        }
+      }
+      current = null;
+      return false;
+    }
+
+    @Override
+    public int compareTo(Run other) {
+      int result = DirectBufferComparator.compareKeys(current.key(), other.current.key());
+      // newer runs first among equal keys
+      return result != 0 ? result : Integer.compare(other.index, index);
+    }
+  }
+
+  /**
+   * Spilled runs and the last committed key, written atomically.
+   */
+  private static final class Manifest {
+    final Path dir;
+    final List<String> runs = new ArrayList<>();
+    long read;
+    long written;
+    byte[] last;
+
+    Manifest(Path dir) {
+      this.dir = dir;
+    }
+
+    static Manifest read(Path dir) throws IOException {
+      Path path = dir.resolve(MANIFEST);
+      if (!Files.exists(path)) {
+        return null;
+      }
+      Properties properties = new Properties();
+      try (InputStream in = Files.newInputStream(path)) {
+        properties.load(in);
+      }
+      Manifest manifest = new Manifest(dir);
+      String runs = properties.getProperty("runs", "");
+      for (String run : runs.split(",")) {
+        if (!run.isEmpty()) {
+          manifest.runs.add(run);
+        }
+      }
+      manifest.read = Long.parseLong(properties.getProperty("read", "0"));
+      manifest.written = Long.parseLong(properties.getProperty("written", "0"));
+      String last = properties.getProperty("last");
+      manifest.last = last == null ? null : Base64.getDecoder().decode(last);
+      return manifest;
+    }
+
+    void write() throws IOException {
+      Properties properties = new Properties();
+      properties.setProperty("runs", String.join(",", runs));
+      properties.setProperty("read", Long.toString(read));
+      properties.setProperty("written", Long.toString(written));
+      if (last != null) {
+        properties.setProperty("last", Base64.getEncoder().encodeToString(last));
+      }
+      Path tmp = dir.resolve(MANIFEST + ".tmp");
+      try (OutputStream out = Files.newOutputStream(tmp)) {
+        properties.store(out, null);
+      }
+      Files.move(tmp, dir.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    void delete() throws IOException {
+      for (String run : runs) {
+        Files.deleteIfExists(dir.resolve(run));
+      }
+      Files.deleteIfExists(dir.resolve(MANIFEST));
+    }
+  }
+
+  public static class Builder {
+    private RxDb db;
+    private Path dir;
+    private long runSize = DEFAULT_RUN_SIZE;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    public Builder db(RxDb db) {
+      this.db = db;
+      return this;
+    }
+
+    /**
+     * Work directory for runs and the manifest. A temporary directory is
+     * used if not set, which means that the load cannot be resumed.
+     */
+    public Builder dir(Path dir) {
+      this.dir = dir;
+      return this;
+    }
+
+    /**
+     * Amount of key and value bytes collected in memory before a run is spilled.
+     */
+    public Builder runSize(long size, ByteUnit unit) {
+      this.runSize = unit.toBytes(size);
+      if (runSize > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Run size must be less than 2GB");
+      }
+      return this;
+    }
+
+    /**
+     * Number of kvs written in each transaction.
+     */
+    public Builder chunkSize(int chunkSize) {
+      this.chunkSize = chunkSize;
+      return this;
+    }
+
+    public BulkLoader build() {
+      return new BulkLoader(this);
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+/**
+ * A snapshot of the statistics of the value cache of a database.
+ */
+public class CacheMetrics {
+  private final long hits;
+  private final long misses;
+  private final long evictions;
+  private final int entries;
+  private final long size;
+  private final long capacity;
+
+  CacheMetrics(long hits, long misses, long evictions, int entries, long size, long capacity) {
+    this.hits = hits;
+    this.misses = misses;
+    this.evictions = evictions;
+    this.entries = entries;
+    this.size = size;
+    this.capacity = capacity;
+  }
+
+  /** number of gets answered by the cache */
+  public long getHits() {
+    return hits;
+  }
+
+  /** number of gets that read LMDB, including keys that do not exist */
+  public long getMisses() {
+    return misses;
+  }
+
+  /** number of values evicted to make room, not counting invalidated values */
+  public long getEvictions() {
+    return evictions;
+  }
+
+  public double getHitRate() {
+    long requests = hits + misses;
+    return requests == 0 ? 0 : (double) hits / requests;
+  }
+
+  /** number of cached values */
+  public int getEntries() {
+    return entries;
+  }
+
+  /** bytes of the slots that hold cached values */
+  public long getSize() {
+    return size;
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  @Override
+  public String toString() {
+    return "CacheMetrics{" +
+      "hits=" + hits +
+      ", misses=" + misses +
+      ", evictions=" + evictions +
+      ", entries=" + entries +
+      ", size=" + size +
+      ", capacity=" + capacity +
+      '}';
+  }
+}
@@ -0,0 +1,345 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+import org.deephacks.rxlmdb.LmdbWriter.Op;
+import org.deephacks.rxlmdb.LmdbWriter.Write;
+import org.fusesource.lmdbjni.DirectBuffer;
+import org.fusesource.lmdbjni.Transaction;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Last writer wins coalescing of the puts and deletes that the writer thread
+ * drained for a transaction. Rewriting the same key many times dirty and copy
+ * the same pages over and over, so only the last put or delete of each key
+ * is written, in key order so that neighbouring keys share pages.
+ * <p/>
+ * Keys are deduplicated with an off heap open addressing table of op indexes
+ * keyed on the raw key bytes. Results are the same as if every write had been
+ * applied in order, a superseded delete still report if the key existed and
+ * ops superseded by an op that fail are reported as failed too, since
+ * nothing was written for them.
+ * <p/>
+ * Only used by the writer thread.
+ */
+final class Coalescer implements Loggable {
+  private static final int INITIAL_CAPACITY = 256;
+  private static final int EMPTY = 0;
+
+  private final RxLmdb lmdb;
+  /** ops in the order they were written, kv is null for deletes */
+  private int size;
+  private RxDb[] dbs = new RxDb[INITIAL_CAPACITY];
+  private DirectBuffer[] keys = new DirectBuffer[INITIAL_CAPACITY];
+  private KeyValue[] kvs = new KeyValue[INITIAL_CAPACITY];
+  private Write[] owners = new Write[INITIAL_CAPACITY];
+  private int[] hashes = new int[INITIAL_CAPACITY];
+  private boolean[] superseded = new boolean[INITIAL_CAPACITY];
+  /** index of the op of the same key that this op superseded, -1 if none */
+  private int[] previous = new int[INITIAL_CAPACITY];
+  /** delete that know if the key existed from an earlier op in the window */
+  private boolean[] resolved = new boolean[INITIAL_CAPACITY];
+  /** superseded delete that must look in the database if the key existed */
+  private boolean[] lookup = new boolean[INITIAL_CAPACITY];
+  /** ops that are written, sorted by db and key */
+  private int[] survivors = new int[INITIAL_CAPACITY];
+  private int survivorCount;
+  /** op index + 1 for each slot */
+  private DirectBuffer table = new DirectBuffer(ByteBuffer.allocateDirect(INITIAL_CAPACITY * 2 * 4));
+  private int mask = INITIAL_CAPACITY * 2 - 1;
+
+  Coalescer(RxLmdb lmdb) {
+    this.lmdb = lmdb;
+  }
+
+  /**
+   * Collect and deduplicate ops of the writes.
+   *
+   * @return false if the writes contain ops that cannot be coalesced, which
+   * must then be applied as is.
+   */
+  boolean coalesce(List<Write> writes) {
+    for (Write write : writes) {
+      if (write.op != Op.PUT && write.op != Op.DELETE && write.op != Op.BATCH) {
+        return false;
+      }
+      if (write.expiresAt != 0) {
+        // keep expiry bookkeeping in one place
+        return false;
+      }
+    }
+    size = 0;
+    for (Write write : writes) {
+      switch (write.op) {
+        case PUT:
+          write.value = true;
+          add(write.db, write.kv, write);
+          break;
+        case DELETE:
+          if (write.key == null) {
+            write.error = new NullPointerException();
+          } else {
+            add(write.db, null, write);
+          }
+          break;
+        case BATCH:
+          write.value = true;
+          for (KeyValue kv : write.kvs) {
+            if (kv == null) {
+              logger().error("Batch put error.", new NullPointerException());
+              write.failed(null);
+            } else {
+              add(write.db, kv, write);
+            }
+          }
+          break;
+      }
+    }
+    dedup();
+    return true;
+  }
+
+  /**
+   * Resolve results of superseded deletes and write the surviving ops.
+   */
+  void apply(Transaction tx, boolean nested) {
+    try {
+      for (int i = 0; i < size; i++) {
+        if (lookup[i]) {
+          // no earlier op in the window, the database tell if the key existed
+          owners[i].value = dbs[i].db.get(tx, owners[i].key) != null;
+        }
+      }
+      if (!nested) {
+        for (int i = 0; i < survivorCount; i++) {
+          try {
+            write(tx, survivors[i]);
+          } catch (Throwable e) {
+            fail(survivors[i], e);
+          }
+        }
+      } else {
+        isolate(tx, 0, survivorCount);
+      }
+    } finally {
+      Arrays.fill(dbs, 0, size, null);
+      Arrays.fill(keys, 0, size, null);
+      Arrays.fill(kvs, 0, size, null);
+      Arrays.fill(owners, 0, size, null);
+      size = 0;
+    }
+  }
+
+  /**
+   * Write a range of survivors in a child transaction and split the range in
+   * halves on failure until the failing ops have been found.
+   */
+  private void isolate(Transaction tx, int from, int to) {
+    if (from >= to) {
+      return;
+    }
+    try (Transaction child = lmdb.env.createTransaction(tx, false)) {
+      for (int i = from; i < to; i++) {
+        write(child, survivors[i]);
+      }
+      child.commit();
+    } catch (Throwable e) {
+      if (to - from == 1) {
+        fail(survivors[from], e);
+      } else {
+        int mid = (from + to) >>> 1;
+        isolate(tx, from, mid);
+        isolate(tx, mid, to);
+      }
+    }
+  }
+
+  private void write(Transaction tx, int i) {
+    if (kvs[i] != null) {
+      dbs[i].write(tx, kvs[i], 0);
+    } else {
+      boolean existed = dbs[i].delete(tx, owners[i].key);
+      if (!resolved[i]) {
+        owners[i].value = existed;
+      }
+    }
+  }
+
+  /**
+   * Fail a surviving op and every op of the same key that it superseded.
+   */
+  private void fail(int i, Throwable e) {
+    for (int j = i; j >= 0; j = previous[j]) {
+      failOp(j, e);
+    }
+  }
+
+  private void failOp(int i, Throwable e) {
+    Write owner = owners[i];
+    if (owner.op == Op.BATCH) {
+      logger().error("Batch put error.", e);
+      owner.failed(kvs[i]);
+    } else {
+      owner.error = e;
+    }
+  }
+
+  private void add(RxDb db, KeyValue kv, Write owner) {
+    if (size == dbs.length) {
+      grow();
+    }
+    DirectBuffer key;
+    if (kv == null) {
+      key = new DirectBuffer(owner.key);
+    } else if (kv.keyBuffer() != null) {
+      key = kv.keyBuffer();
+    } else {
+      key = new DirectBuffer(kv.key());
+    }
+    dbs[size] = db;
+    keys[size] = key;
+    kvs[size] = kv;
+    owners[size] = owner;
+    hashes[size] = hash(db, key);
+    superseded[size] = false;
+    previous[size] = -1;
+    resolved[size] = false;
+    lookup[size] = false;
+    size++;
+  }
+
+  private void dedup() {
+    int capacity = Math.max(INITIAL_CAPACITY * 2, Integer.highestOneBit(size * 2 - 1) << 1);
+    if (capacity * 4 > table.capacity()) {
+      table = new DirectBuffer(ByteBuffer.allocateDirect(capacity * 4));
+    } else {
+      table.setMemory(0, capacity * 4, (byte) EMPTY);
+    }
+    mask = capacity - 1;
+    for (int i = 0; i < size; i++) {
+      int slot = hashes[i] & mask;
+      while (true) {
+        int index = table.getInt(slot * 4) - 1;
+        if (index < 0) {
+          table.putInt(slot * 4, i + 1);
+          break;
+        }
+        if (hashes[index] == hashes[i] && dbs[index] == dbs[i] && equals(keys[index], keys[i])) {
+          supersede(index, i);
+          table.putInt(slot * 4, i + 1);
+          break;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+    survivorCount = 0;
+    for (int i = 0; i < size; i++) {
+      if (!superseded[i]) {
+        survivors[survivorCount++] = i;
+      }
+    }
+    sort(0, survivorCount - 1);
+  }
+
+  private void supersede(int prev, int next) {
+    superseded[prev] = true;
+    previous[next] = prev;
+    if (kvs[prev] == null && !resolved[prev]) {
+      lookup[prev] = true;
+    }
+    if (kvs[next] == null) {
+      // key exist after prev if prev was a put
+      resolved[next] = true;
+      owners[next].value = kvs[prev] != null;
+    }
+  }
+
+  private int compare(int i, int j) {
+    if (dbs[i] != dbs[j]) {
+      return dbs[i].name.compareTo(dbs[j].name);
+    }
+    DirectBuffer k1 = keys[i];
+    DirectBuffer k2 = keys[j];
+    return DirectBufferComparator.compareTo(k1, 0, k1.capacity(), k2, 0, k2.capacity());
+  }
+
+  /**
+   * Quicksort of survivor indexes, keys are unique per db.
+   */
+  private void sort(int lo, int hi) {
+    while (lo < hi) {
+      int pivot = survivors[(lo + hi) >>> 1];
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (compare(survivors[i], pivot) < 0) {
+          i++;
+        }
+        while (compare(survivors[j], pivot) > 0) {
+          j--;
+        }
+        if (i <= j) {
+          int tmp = survivors[i];
+          survivors[i++] = survivors[j];
+          survivors[j--] = tmp;
+        }
+      }
+      // recurse into the smaller half
+      if (j - lo < hi - i) {
+        sort(lo, j);
+        lo = i;
+      } else {
+        sort(i, hi);
+        hi = j;
+      }
+    }
+  }
+
+  private void grow() {
+    int capacity = dbs.length * 2;
+    dbs = Arrays.copyOf(dbs, capacity);
+    keys = Arrays.copyOf(keys, capacity);
+    kvs = Arrays.copyOf(kvs, capacity);
+    owners = Arrays.copyOf(owners, capacity);
+    hashes = Arrays.copyOf(hashes, capacity);
+    superseded = Arrays.copyOf(superseded, capacity);
+    previous = Arrays.copyOf(previous, capacity);
+    resolved = Arrays.copyOf(resolved, capacity);
+    lookup = Arrays.copyOf(lookup, capacity);
+    survivors = Arrays.copyOf(survivors, capacity);
+  }
+
+  private static boolean equals(DirectBuffer k1, DirectBuffer k2) {
+    return k1.capacity() == k2.capacity()
+      && DirectBufferComparator.compareTo(k1, 0, k1.capacity(), k2, 0, k2.capacity()) == 0;
+  }
+
+  private static int hash(RxDb db, DirectBuffer key) {
+    int h = System.identityHashCode(db);
+    int length = key.capacity();
+    int i = 0;
+    for (; i + 4 <= length; i += 4) {
+      h = 31 * h + key.getInt(i);
+    }
+    for (; i < length; i++) {
+      h = 31 * h + key.getByte(i);
+    }
+    // spread bits since the table index use the lower bits
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
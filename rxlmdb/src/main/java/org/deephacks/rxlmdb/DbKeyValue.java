@@ -0,0 +1,43 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+/**
+ * A kv tagged with the database it should be written to.
+ *
+ * @see RxLmdb#batch(rx.Observable)
+ */
+public class DbKeyValue {
+  private final RxDb db;
+  private final KeyValue kv;
+
+  public DbKeyValue(RxDb db, KeyValue kv) {
+    if (db == null) {
+      throw new NullPointerException();
+    }
+    if (kv == null) {
+      throw new NullPointerException();
+    }
+    this.db = db;
+    this.kv = kv;
+  }
+
+  public RxDb db() {
+    return db;
+  }
+
+  public KeyValue kv() {
+    return kv;
+  }
+}
@@ -7,7 +7,6 @@ import java.util.Comparator;
 
 class DirectBufferComparator implements Comparator<DirectBuffer> {
   public static final int LONG_BYTES = Long.SIZE / Byte.SIZE;
-  static final boolean littleEndian = ByteOrder.nativeOrder().equals(ByteOrder.LITTLE_ENDIAN);
 
   @Override
   public int compare(DirectBuffer o1, DirectBuffer o2) {
@@ -18,6 +17,27 @@ class DirectBufferComparator implements Comparator<DirectBuffer> {
     return (o1, o2) -> compareTo(o1, o2);
   }
 
+  /**
+   * Compare full keys in the same order as LMDB.
+   */
+  public static int compareKeys(byte[] key1, byte[] key2) {
+    return compareTo(new DirectBuffer(key1), 0, key1.length, new DirectBuffer(key2), 0, key2.length);
+  }
+
+  /**
+   * Compare a full key with a key provided by LMDB without wrapping it.
+   */
+  public static int compareKeys(byte[] key1, DirectBuffer key2) {
+    int length = Math.min(key1.length, key2.capacity());
+    for (int i = 0; i < length; i++) {
+      int cmp = (key1[i] & 0xff) - (key2.getByte(i) & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return key1.length - key2.capacity();
+  }
+
   public static int compareTo(byte[] key, byte[] stop) {
     return compareTo(new DirectBuffer(key), new DirectBuffer(stop));
   }
@@ -70,36 +90,11 @@ class DirectBufferComparator implements Comparator<DirectBuffer> {
      * On the other hand, it is substantially faster on 64-bit.
      */
     for (int i = 0; i < minWords * LONG_BYTES; i += LONG_BYTES) {
-      long lw = buffer1.getLong(i, ByteOrder.BIG_ENDIAN);
-      long rw = buffer2.getLong(i, ByteOrder.BIG_ENDIAN);
-      long diff = lw ^ rw;
-
-      if (diff != 0) {
-        if (!littleEndian) {
-          return lessThanUnsigned(lw, rw) ? -1 : 1;
-        }
-
-        // Use binary search
-        int n = 0;
-        int y;
-        int x = (int) diff;
-        if (x == 0) {
-          x = (int) (diff >>> 32);
-          n = 32;
-        }
-
-        y = x << 16;
-        if (y == 0) {
-          n += 16;
-        } else {
-          x = y;
-        }
-
-        y = x << 8;
-        if (y == 0) {
-          n += 8;
-        }
-        return (int) (((lw >>> n) & 0xFFL) - ((rw >>> n) & 0xFFL));
+      // big endian words compare as unsigned longs in the same order as their bytes
+      long lw = buffer1.getLong(offset1 + i, ByteOrder.BIG_ENDIAN);
+      long rw = buffer2.getLong(offset2 + i, ByteOrder.BIG_ENDIAN);
+      if (lw != rw) {
+        return lessThanUnsigned(lw, rw) ? -1 : 1;
       }
     }
 
@@ -0,0 +1,59 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.DirectBuffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Thread local direct memory for keys that are passed to LMDB by address.
+ * Allocating a direct buffer per lookup is slow and the memory is only
+ * freed by a Cleaner after a GC, so keys are copied into memory that is
+ * reused by the thread instead.
+ * <p/>
+ * A wrapped key, and the value buffer, are only valid until the same
+ * thread wrap the next key.
+ */
+final class DirectKeys {
+  static final int INITIAL_CAPACITY = 512;
+  private static final ThreadLocal<DirectKeys> POOL = ThreadLocal.withInitial(DirectKeys::new);
+
+  private DirectBuffer memory = new DirectBuffer(ByteBuffer.allocateDirect(INITIAL_CAPACITY));
+  private final DirectBuffer key = new DirectBuffer();
+  private final DirectBuffer value = new DirectBuffer();
+
+  /**
+   * @return the key copied into direct memory of the calling thread.
+   */
+  static DirectBuffer wrap(byte[] key) {
+    return POOL.get().copy(key);
+  }
+
+  /**
+   * @return a buffer of the calling thread that LMDB can point at a value.
+   */
+  static DirectBuffer value() {
+    return POOL.get().value;
+  }
+
+  private DirectBuffer copy(byte[] bytes) {
+    if (bytes.length > memory.capacity()) {
+      memory = new DirectBuffer(ByteBuffer.allocateDirect(Math.max(bytes.length, memory.capacity() * 2)));
+    }
+    memory.putBytes(0, bytes);
+    key.wrap(memory.addressOffset(), bytes.length);
+    return key;
+  }
+}
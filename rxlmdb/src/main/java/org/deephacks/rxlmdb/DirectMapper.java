@@ -17,6 +17,24 @@ public interface DirectMapper<T> {
    */
   T map(DirectBuffer key, DirectBuffer value);
 
+  /**
+   * Copy only length bytes of the value starting at offset, or fewer if
+   * the value end before.
+   */
+  static DirectMapper<byte[]> slice(int offset, int length) {
+    return new SliceMapper(offset, length);
+  }
+
+  /**
+   * Copy the key and only a slice of the value, for scans that need to
+   * know the key of each slice.
+   *
+   * @see DirectMapper#slice(int, int)
+   */
+  static DirectMapper<KeyValue> keySlice(int offset, int length) {
+    return new KeySliceMapper(offset, length);
+  }
+
   class KeyValueMapper implements DirectMapper<KeyValue> {
 
     @Override
@@ -28,4 +46,41 @@ public interface DirectMapper<T> {
       return new KeyValue(k, v);
     }
   }
+
+  class SliceMapper implements DirectMapper<byte[]> {
+    final int offset;
+    final int length;
+
+    SliceMapper(int offset, int length) {
+      if (offset < 0 || length < 0) {
+        throw new IllegalArgumentException("offset and length must not be negative");
+      }
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    public byte[] map(DirectBuffer key, DirectBuffer value) {
+      byte[] v = new byte[Math.max(0, Math.min(length, value.capacity() - offset))];
+      if (v.length > 0) {
+        value.getBytes(offset, v);
+      }
+      return v;
+    }
+  }
+
+  class KeySliceMapper implements DirectMapper<KeyValue> {
+    final SliceMapper slice;
+
+    KeySliceMapper(int offset, int length) {
+      this.slice = new SliceMapper(offset, length);
+    }
+
+    @Override
+    public KeyValue map(DirectBuffer key, DirectBuffer value) {
+      byte[] k = new byte[key.capacity()];
+      key.getBytes(0, k);
+      return new KeyValue(k, slice.map(key, value));
+    }
+  }
 }
@@ -0,0 +1,154 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.Constants;
+import rx.Observable;
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+import rx.subjects.BehaviorSubject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keep track of which commits of the writer thread are durable.
+ * <p/>
+ * Environments opened with noSync, noMetaSync or mapAsync do not flush
+ * on commit. Instead the environment is flushed in the background, at a
+ * fixed interval, when enough bytes have been written since the last
+ * flush or when someone wait for a commit to become durable. The sequence
+ * of the last commit that was flushed is published as a watermark.
+ * <p/>
+ * Environments that flush on commit publish each commit sequence directly.
+ */
+final class DurabilityManager implements Loggable {
+  static final int ASYNC_FLAGS = Constants.NOSYNC | Constants.NOMETASYNC | Constants.MAPASYNC;
+
+  final RxLmdb lmdb;
+  /** commits are durable once committed */
+  final boolean syncOnCommit;
+  final long thresholdBytes;
+  /** background sync, null if commits are durable once committed */
+  final Scheduler.Worker worker;
+  final BehaviorSubject<Long> durable = BehaviorSubject.create(0L);
+  final AtomicBoolean syncRequested = new AtomicBoolean();
+  /** sequence of the last commit */
+  volatile long committed;
+  /** sequence of the last durable commit */
+  private volatile long watermark;
+  /** only touched by the writer thread */
+  private long unsyncedBytes;
+
+  DurabilityManager(RxLmdb lmdb, long intervalNanos, long thresholdBytes) {
+    this.lmdb = lmdb;
+    this.syncOnCommit = (lmdb.flags & ASYNC_FLAGS) == 0;
+    this.thresholdBytes = thresholdBytes;
+    this.worker = syncOnCommit ? null : Schedulers.newThread().createWorker();
+    if (worker != null && intervalNanos > 0) {
+      worker.schedulePeriodically(this::sync, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Called by the writer thread after each commit.
+   *
+   * @param bytes number of key and value bytes written in the transaction,
+   *              only counted if there is a byte threshold.
+   */
+  void committed(long sequence, long bytes) {
+    committed = sequence;
+    if (syncOnCommit) {
+      publish(sequence);
+      return;
+    }
+    if (thresholdBytes > 0) {
+      unsyncedBytes += bytes;
+      if (unsyncedBytes >= thresholdBytes) {
+        unsyncedBytes = 0;
+        requestSync();
+      }
+    }
+  }
+
+  boolean countBytes() {
+    return !syncOnCommit && thresholdBytes > 0;
+  }
+
+  long watermark() {
+    return watermark;
+  }
+
+  Observable<Long> watermarks() {
+    return durable;
+  }
+
+  /**
+   * Emit the watermark once the commit with the sequence is durable,
+   * requesting a flush if needed.
+   */
+  Observable<Long> await(long sequence) {
+    long current = watermark;
+    if (current >= sequence) {
+      return Observable.just(current);
+    }
+    requestSync();
+    return durable.filter(s -> s >= sequence).first();
+  }
+
+  void requestSync() {
+    // commits that flush on commit are published by the writer thread
+    if (worker != null && syncRequested.compareAndSet(false, true)) {
+      worker.schedule(this::sync);
+    }
+  }
+
+  synchronized void sync() {
+    syncRequested.set(false);
+    // everything committed before the flush is durable after it
+    long sequence = committed;
+    if (sequence <= watermark) {
+      return;
+    }
+    try {
+      lmdb.env.sync(true);
+      publish(sequence);
+    } catch (Throwable e) {
+      logger().error("Sync error.", e);
+    }
+  }
+
+  private synchronized void publish(long sequence) {
+    if (sequence > watermark) {
+      watermark = sequence;
+      try {
+        durable.onNext(sequence);
+      } catch (Throwable e) {
+        // may be called by the writer thread, which must go on to complete writes
+        logger().error("Watermark error.", e);
+      }
+    }
+  }
+
+  /**
+   * Flush what is left after the writer thread has stopped.
+   */
+  void close() {
+    if (worker != null) {
+      worker.unsubscribe();
+    }
+    sync();
+    durable.onCompleted();
+  }
+}
@@ -0,0 +1,133 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.BufferCursor;
+import org.fusesource.lmdbjni.Database;
+import org.fusesource.lmdbjni.DirectBuffer;
+import org.fusesource.lmdbjni.Transaction;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Expiry times of the keys of a database, kept in two companion databases.
+ * <p/>
+ * The index database is ordered by expiry time with keys [8 byte expiry
+ * millis][key] so that expired keys are found with a cursor from the start,
+ * without scanning the database itself. The lookup database map each key to
+ * its expiry time, which is needed to remove the old index entry when a key
+ * is written again and to ignore index entries that are stale.
+ */
+final class Expiry {
+  private static final byte[] EMPTY = new byte[0];
+
+  final RxDb db;
+  final Database index;
+  final Database lookup;
+
+  Expiry(RxDb db) {
+    this.db = db;
+    this.index = db.lmdb.env.openDatabase(db.name + ".ttl");
+    this.lookup = db.lmdb.env.openDatabase(db.name + ".expiry");
+  }
+
+  /**
+   * Set the expiry time of a key, replacing any previous expiry time.
+   */
+  void expire(Transaction tx, byte[] key, long expiresAt) {
+    byte[] previous = lookup.get(tx, key);
+    if (previous != null) {
+      index.delete(tx, indexKey(toLong(previous), key));
+    }
+    lookup.put(tx, key, toBytes(expiresAt));
+    index.put(tx, indexKey(expiresAt, key), EMPTY);
+  }
+
+  /**
+   * Remove the expiry time of a key that is written without TTL.
+   */
+  void clear(Transaction tx, byte[] key) {
+    byte[] previous = lookup.get(tx, key);
+    if (previous != null) {
+      lookup.delete(tx, key);
+      index.delete(tx, indexKey(toLong(previous), key));
+    }
+  }
+
+  void truncate(Transaction tx) {
+    index.drop(tx, false);
+    lookup.drop(tx, false);
+  }
+
+  /**
+   * Delete keys that expired at or before now in transactions of at most
+   * chunkSize index entries, so that the writer thread is never blocked
+   * for long.
+   *
+   * @return number of deleted keys.
+   */
+  long sweep(long now, int chunkSize) {
+    long deleted = 0;
+    while (true) {
+      int visited = 0;
+      try (Transaction tx = db.lmdb.env.createWriteTransaction()) {
+        try (BufferCursor cursor = index.bufferCursor(tx)) {
+          boolean hasNext = cursor.first();
+          while (hasNext && visited < chunkSize) {
+            DirectBuffer indexKey = cursor.keyBuffer();
+            long expiresAt = indexKey.getLong(0, ByteOrder.BIG_ENDIAN);
+            if (expiresAt > now) {
+              break;
+            }
+            byte[] key = new byte[indexKey.capacity() - 8];
+            indexKey.getBytes(8, key);
+            byte[] current = lookup.get(tx, key);
+            // the key may have been written again with another or no TTL
+            if (current != null && toLong(current) == expiresAt) {
+              lookup.delete(tx, key);
+              if (db.delete(tx, key)) {
+                deleted++;
+              }
+            }
+            cursor.delete();
+            visited++;
+            hasNext = cursor.next();
+          }
+        }
+        tx.commit();
+      }
+      if (visited < chunkSize) {
+        return deleted;
+      }
+    }
+  }
+
+  void close() {
+    index.close();
+    lookup.close();
+  }
+
+  private static byte[] indexKey(long expiresAt, byte[] key) {
+    return ByteBuffer.allocate(8 + key.length).putLong(expiresAt).put(key).array();
+  }
+
+  private static byte[] toBytes(long value) {
+    return ByteBuffer.allocate(8).putLong(value).array();
+  }
+
+  private static long toLong(byte[] value) {
+    return ByteBuffer.wrap(value).getLong();
+  }
+}
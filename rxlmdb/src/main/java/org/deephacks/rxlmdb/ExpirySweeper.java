@@ -0,0 +1,75 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background thread that periodically delete expired keys of every
+ * database that has TTL enabled.
+ */
+final class ExpirySweeper implements Loggable {
+  static final long DEFAULT_INTERVAL_MILLIS = 1000;
+  static final int DEFAULT_CHUNK_SIZE = 1000;
+
+  final List<Expiry> expiries = new CopyOnWriteArrayList<>();
+  final int chunkSize;
+  final Scheduler.Worker worker;
+
+  ExpirySweeper(long intervalMillis, int chunkSize) {
+    this.chunkSize = chunkSize;
+    this.worker = Schedulers.newThread().createWorker();
+    worker.schedulePeriodically(this::sweep, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  void register(Expiry expiry) {
+    expiries.add(expiry);
+  }
+
+  /**
+   * Wait for a sweep in progress so that the databases can be closed.
+   */
+  synchronized void unregister(Expiry expiry) {
+    expiries.remove(expiry);
+  }
+
+  /**
+   * @return number of deleted keys.
+   */
+  synchronized long sweep() {
+    long now = System.currentTimeMillis();
+    long deleted = 0;
+    for (Expiry expiry : expiries) {
+      try {
+        deleted += expiry.sweep(now, chunkSize);
+      } catch (Throwable e) {
+        logger().error("Sweep error.", e);
+      }
+    }
+    return deleted;
+  }
+
+  /**
+   * Stop sweeping and wait for a sweep in progress to finish.
+   */
+  synchronized void close() {
+    worker.unsubscribe();
+    expiries.clear();
+  }
+}
@@ -64,6 +64,38 @@ public class KeyRange {
     }
   }
 
+  /**
+   * Lowest key of the range regardless of direction, null if unbounded.
+   */
+  byte[] lower() {
+    switch (type) {
+      case FORWARD_START:
+      case FOWARD_RANGE:
+        return start;
+      case BACKWARD_STOP:
+      case BACKWARD_RANGE:
+        return stop;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Highest key of the range regardless of direction, null if unbounded.
+   */
+  byte[] upper() {
+    switch (type) {
+      case FORWARD_STOP:
+      case FOWARD_RANGE:
+        return stop;
+      case BACKWARD_START:
+      case BACKWARD_RANGE:
+        return start;
+      default:
+        return null;
+    }
+  }
+
   enum KeyRangeType {
     FORWARD, FORWARD_START, FORWARD_STOP, FOWARD_RANGE, BACKWARD, BACKWARD_START, BACKWARD_STOP, BACKWARD_RANGE
   }
@@ -20,6 +20,9 @@ import java.nio.ByteOrder;
 import java.util.Arrays;
 
 public class KeyValue {
+  /** marker of keys that are not found by RxDb#multiGet */
+  public static final KeyValue NOT_FOUND = new KeyValue(new byte[0], new byte[0]);
+
   private final byte[] key;
   private final byte[] value;
 
@@ -83,4 +86,39 @@ public class KeyValue {
   public DirectBuffer valueBuffer() {
     return valueBuffer;
   }
+
+  /**
+   * True if both key and value are buffers that point to memory outside of
+   * the heap, which can be handed over to LMDB as is without copying.
+   */
+  boolean isOffHeap() {
+    return keyBuffer != null && keyBuffer.byteArray() == null && valueBuffer.byteArray() == null;
+  }
+
+  /**
+   * Number of key and value bytes.
+   */
+  int size() {
+    return key != null ? key.length + value.length : keyBuffer.capacity() + valueBuffer.capacity();
+  }
+
+  /**
+   * The key, copied from the buffer if this kv is buffer backed.
+   */
+  byte[] keyBytes() {
+    return key != null ? key : copy(keyBuffer);
+  }
+
+  /**
+   * The value, copied from the buffer if this kv is buffer backed.
+   */
+  byte[] valueBytes() {
+    return value != null ? value : copy(valueBuffer);
+  }
+
+  private static byte[] copy(DirectBuffer buffer) {
+    byte[] bytes = new byte[buffer.capacity()];
+    buffer.getBytes(0, bytes);
+    return bytes;
+  }
 }
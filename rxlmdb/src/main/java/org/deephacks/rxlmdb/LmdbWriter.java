@@ -0,0 +1,617 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.Constants;
+import org.fusesource.lmdbjni.DirectBuffer;
+import org.fusesource.lmdbjni.Transaction;
+import rx.Observable;
+import rx.functions.Action1;
+import rx.subjects.AsyncSubject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+/**
+ * A dedicated writer thread that group commit writes from many threads.
+ * LMDB only allow one write transaction at a time so instead of letting
+ * each caller open, write and fsync its own transaction, writes are
+ * published into a ring buffer and the writer drain whatever is available
+ * into a single transaction. Each write is acknowledged when the
+ * transaction that contains it has been committed.
+ * <p/>
+ * Acknowledgements are emitted on the writer thread, so subscribers must
+ * not block. A subscriber that wait for another write, like a synchronous
+ * put, deadlock the writer since that write is never committed. Use
+ * observeOn to move such work to another thread.
+ */
+final class LmdbWriter implements Runnable, Loggable {
+  static final int DEFAULT_MAX_BATCH = 1024;
+  static final int DEFAULT_BUFFER_SIZE = 4096;
+
+  final RxLmdb lmdb;
+  final AdaptiveBatching batching;
+  final RingBuffer<Write> ring;
+  final WaitStrategy waitStrategy;
+  /** throw RejectedExecutionException instead of waiting when the buffer is full */
+  final boolean failFast;
+  /** isolate failing writes in nested transactions, not supported with WRITEMAP */
+  final boolean nested;
+  /** last writer wins coalescing of puts and deletes, null if disabled */
+  final Coalescer coalescer;
+  final DurabilityManager durability;
+  final Thread thread;
+  volatile boolean running = true;
+  /** sequence of the last committed transaction, only written by the writer thread */
+  volatile long sequence;
+
+  LmdbWriter(RxLmdb lmdb, AdaptiveBatching batching, int bufferSize, WaitStrategy waitStrategy,
+             boolean failFast, boolean coalesce) {
+    this.lmdb = lmdb;
+    this.batching = batching;
+    this.ring = new RingBuffer<>(bufferSize, Write::new);
+    this.waitStrategy = waitStrategy;
+    this.failFast = failFast;
+    this.nested = (lmdb.flags & Constants.WRITEMAP) == 0;
+    this.coalescer = coalesce ? new Coalescer(lmdb) : null;
+    this.durability = new DurabilityManager(lmdb, lmdb.syncIntervalNanos, lmdb.syncThresholdBytes);
+    this.thread = new Thread(this, "rxlmdb-writer");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  Observable<Boolean> put(RxDb db, KeyValue kv) {
+    AsyncSubject<Boolean> result = AsyncSubject.create();
+    try {
+      publish(Op.PUT, db, kv, null, null, result, null);
+    } catch (Throwable e) {
+      return Observable.error(e);
+    }
+    return result;
+  }
+
+  /**
+   * Put a kv that expire at the given time in millis.
+   */
+  Observable<Boolean> put(RxDb db, KeyValue kv, long expiresAt) {
+    AsyncSubject<Boolean> result = AsyncSubject.create();
+    try {
+      Write write = claim();
+      write.expiresAt = expiresAt;
+      publish(write, Op.PUT, db, kv, null, null, result, null);
+    } catch (Throwable e) {
+      return Observable.error(e);
+    }
+    return result;
+  }
+
+  Observable<Boolean> delete(RxDb db, byte[] key) {
+    AsyncSubject<Boolean> result = AsyncSubject.create();
+    try {
+      publish(Op.DELETE, db, null, key, null, result, null);
+    } catch (Throwable e) {
+      return Observable.error(e);
+    }
+    return result;
+  }
+
+  Observable<Boolean> reserve(RxDb db, byte[] key, int size, ValueWriter valueWriter) {
+    AsyncSubject<Boolean> result = AsyncSubject.create();
+    try {
+      Write write = claim();
+      write.size = size;
+      write.valueWriter = valueWriter;
+      publish(write, Op.RESERVE, db, null, key, null, result, null);
+    } catch (Throwable e) {
+      return Observable.error(e);
+    }
+    return result;
+  }
+
+  Observable<Boolean> putIfAbsent(RxDb db, KeyValue kv) {
+    AsyncSubject<Boolean> result = AsyncSubject.create();
+    try {
+      publish(Op.PUT_IF_ABSENT, db, kv, null, null, result, null);
+    } catch (Throwable e) {
+      return Observable.error(e);
+    }
+    return result;
+  }
+
+  Observable<byte[]> update(RxDb db, byte[] key, Function<DirectBuffer, byte[]> function) {
+    AsyncSubject<byte[]> updated = AsyncSubject.create();
+    try {
+      Write write = claim();
+      write.function = function;
+      write.updated = updated;
+      publish(write, Op.UPDATE, db, null, key, null, null, null);
+    } catch (Throwable e) {
+      return Observable.error(e);
+    }
+    return updated;
+  }
+
+  Observable<Boolean> compareAndSet(RxDb db, byte[] key, byte[] expect, byte[] update) {
+    AsyncSubject<Boolean> result = AsyncSubject.create();
+    try {
+      Write write = claim();
+      write.expect = expect;
+      write.update = update;
+      publish(write, Op.CAS, db, null, key, null, result, null);
+    } catch (Throwable e) {
+      return Observable.error(e);
+    }
+    return result;
+  }
+
+  /**
+   * Hand over a list of kvs that will be written in the same transaction.
+   *
+   * @param ack notified with a BatchResult when the transaction has been committed,
+   *            or null for fire and forget.
+   */
+  void batch(RxDb db, List<KeyValue> kvs, Action1<BatchResult> ack) {
+    publish(Op.BATCH, db, null, null, kvs, null, ack);
+  }
+
+  /**
+   * Hand over a list of kvs that expire at the given time in millis.
+   */
+  void batch(RxDb db, List<KeyValue> kvs, long expiresAt, Action1<BatchResult> ack) {
+    Write write = claim();
+    write.expiresAt = expiresAt;
+    publish(write, Op.BATCH, db, null, null, kvs, null, ack);
+  }
+
+  /**
+   * Hand over deltas, at most one per key, that are merged into the values
+   * of their keys in the same transaction.
+   */
+  void merge(RxDb db, List<KeyValue> deltas, Action1<BatchResult> ack) {
+    publish(Op.MERGE, db, null, null, deltas, null, ack);
+  }
+
+  /**
+   * Hand over kvs for many databases that will be written atomically, either
+   * all of them are committed or none.
+   */
+  void atomic(List<DbKeyValue> entries, Action1<BatchResult> ack) {
+    Write write = claim();
+    write.entries = entries;
+    publish(write, Op.ATOMIC, null, null, null, null, null, ack);
+  }
+
+  private void publish(Op op, RxDb db, KeyValue kv, byte[] key, List<KeyValue> kvs,
+                       AsyncSubject<Boolean> result, Action1<BatchResult> ack) {
+    publish(claim(), op, db, kv, key, kvs, result, ack);
+  }
+
+  /**
+   * Claim an entry that must be published.
+   */
+  private Write claim() {
+    if (!running) {
+      throw new IllegalStateException("Writer is closed");
+    }
+    long seq = failFast ? ring.tryClaim() : ring.claim(waitStrategy);
+    if (seq < 0) {
+      throw new RejectedExecutionException("Write buffer is full");
+    }
+    Write write = ring.get(seq);
+    write.seq = seq;
+    return write;
+  }
+
+  private void publish(Write write, Op op, RxDb db, KeyValue kv, byte[] key, List<KeyValue> kvs,
+                       AsyncSubject<Boolean> result, Action1<BatchResult> ack) {
+    write.op = op;
+    write.db = db;
+    write.kv = kv;
+    write.key = key;
+    write.kvs = kvs;
+    write.result = result;
+    write.ack = ack;
+    ring.publish(write.seq);
+  }
+
+  @Override
+  public void run() {
+    List<Write> writes = new ArrayList<>(batching.maxBatch);
+    int idle = 0;
+    while (running || !ring.isEmpty()) {
+      int batchSize = batching.batchSize;
+      int n = ring.drain(writes, batchSize);
+      if (n == 0) {
+        waitStrategy.idle(idle++);
+        continue;
+      }
+      idle = 0;
+      n += linger(writes, n, batchSize);
+      try {
+        long latency = commit(writes);
+        batching.update(n, latency, ring.size() - n);
+      } catch (Throwable e) {
+        logger().error("Writer error.", e);
+      } finally {
+        for (Write write : writes) {
+          write.clear();
+        }
+        writes.clear();
+        ring.release(n);
+      }
+    }
+  }
+
+  /**
+   * Wait for more writes to fill up a partial batch, for at most the current linger time.
+   *
+   * @return number of additional entries drained.
+   */
+  private int linger(List<Write> writes, int n, int batchSize) {
+    long linger = batching.lingerNanos;
+    if (linger <= 0 || n >= batchSize) {
+      return 0;
+    }
+    long deadline = System.nanoTime() + linger;
+    int added = 0;
+    int counter = 0;
+    while (n + added < batchSize && running && System.nanoTime() < deadline) {
+      int drained = ring.drain(writes, n + added, batchSize);
+      if (drained == 0) {
+        waitStrategy.idle(counter++);
+      }
+      added += drained;
+    }
+    return added;
+  }
+
+  /**
+   * @return nanoseconds it took to write and commit the transaction.
+   */
+  private long commit(List<Write> writes) {
+    long start = System.nanoTime();
+    long committed = BatchResult.NOT_COMMITTED;
+    try (Transaction tx = lmdb.env.createWriteTransaction()) {
+      if (coalescer != null && coalescer.coalesce(writes)) {
+        coalescer.apply(tx, nested);
+      } else if (nested) {
+        applyNested(tx, writes);
+      } else {
+        for (Write write : writes) {
+          write.applyEach(tx);
+        }
+      }
+      tx.commit();
+      committed = ++sequence;
+    } catch (Throwable e) {
+      // nothing was committed, fail writes that did not fail already
+      for (Write write : writes) {
+        if (write.error == null) {
+          write.error = e;
+        }
+      }
+    }
+    if (committed != BatchResult.NOT_COMMITTED) {
+      durability.committed(committed, durability.countBytes() ? bytes(writes) : 0);
+    }
+    long latency = System.nanoTime() - start;
+    for (Write write : writes) {
+      try {
+        write.complete(committed, latency);
+      } catch (Throwable e) {
+        // a failing subscriber must not keep other writes from completing
+        logger().error("Completion error.", e);
+      }
+    }
+    return latency;
+  }
+
+  private static long bytes(List<Write> writes) {
+    long bytes = 0;
+    for (Write write : writes) {
+      bytes += write.bytes();
+    }
+    return bytes;
+  }
+
+  /**
+   * Write all entries in a child transaction. A failing write may leave the
+   * transaction unusable (MAP_FULL for example) so if anything fail the child
+   * is rolled back and the writes are redone one by one in their own child
+   * transactions, which let the failing write roll back alone while the rest
+   * still commit with the parent.
+   */
+  private void applyNested(Transaction tx, List<Write> writes) {
+    try (Transaction child = lmdb.env.createTransaction(tx, false)) {
+      for (Write write : writes) {
+        write.value = write.apply(child);
+      }
+      child.commit();
+      return;
+    } catch (Throwable e) {
+      // fall through and isolate the failing write
+    }
+    for (Write write : writes) {
+      write.value = false;
+      if (write.op == Op.BATCH || write.op == Op.MERGE) {
+        isolate(tx, write, 0, write.kvs.size());
+        write.value = true;
+      } else {
+        try (Transaction child = lmdb.env.createTransaction(tx, false)) {
+          write.value = write.apply(child);
+          child.commit();
+        } catch (Throwable e) {
+          write.error = e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Write a range of kvs from a batch in a child transaction and split the
+   * range in halves on failure until the failing kvs have been found, so that
+   * a few bad kvs in a large batch only cost a few extra child transactions.
+   */
+  private void isolate(Transaction tx, Write write, int from, int to) {
+    if (from >= to) {
+      return;
+    }
+    try (Transaction child = lmdb.env.createTransaction(tx, false)) {
+      for (int i = from; i < to; i++) {
+        write.put(child, write.kvs.get(i));
+      }
+      child.commit();
+    } catch (Throwable e) {
+      if (to - from == 1) {
+        logger().error("Batch put error.", e);
+        write.failed(write.kvs.get(from));
+      } else {
+        int mid = (from + to) >>> 1;
+        isolate(tx, write, from, mid);
+        isolate(tx, write, mid, to);
+      }
+    }
+  }
+
+  /**
+   * Stop accepting writes and wait for published writes to be committed.
+   */
+  void close() {
+    running = false;
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // fail writes that raced with close
+    List<Write> writes = new ArrayList<>();
+    int n = ring.drain(writes, ring.capacity());
+    for (Write write : writes) {
+      write.error = new IllegalStateException("Writer is closed");
+      try {
+        write.complete(BatchResult.NOT_COMMITTED, 0);
+      } catch (Throwable e) {
+        // a failing subscriber must not keep other writes from completing
+        logger().error("Completion error.", e);
+      }
+      write.clear();
+    }
+    ring.release(n);
+    durability.close();
+  }
+
+  enum Op {
+    PUT, DELETE, RESERVE, BATCH, ATOMIC, PUT_IF_ABSENT, UPDATE, CAS, MERGE
+  }
+
+  /**
+   * Pre-allocated ring buffer entry, reused for every lap.
+   */
+  static final class Write implements Loggable {
+    long seq;
+    Op op;
+    RxDb db;
+    KeyValue kv;
+    byte[] key;
+    List<KeyValue> kvs;
+    List<DbKeyValue> entries;
+    int size;
+    ValueWriter valueWriter;
+    /** expiry time in millis of kvs written by PUT and BATCH, 0 if none */
+    long expiresAt;
+    Function<DirectBuffer, byte[]> function;
+    byte[] expect;
+    byte[] update;
+    AsyncSubject<byte[]> updated;
+    byte[] updatedValue;
+    AsyncSubject<Boolean> result;
+    Action1<BatchResult> ack;
+    List<byte[]> failed;
+    boolean value;
+    Throwable error;
+
+    /**
+     * Write the entry and throw on the first error.
+     */
+    boolean apply(Transaction tx) {
+      switch (op) {
+        case PUT:
+          put(tx, kv);
+          return true;
+        case DELETE:
+          return db.delete(tx, key);
+        case RESERVE:
+          db.reserve(tx, key, size, valueWriter);
+          return true;
+        case BATCH:
+        case MERGE:
+          for (KeyValue kv : kvs) {
+            put(tx, kv);
+          }
+          return true;
+        case ATOMIC:
+          for (DbKeyValue entry : entries) {
+            entry.db().write(tx, entry.kv(), 0);
+          }
+          return true;
+        case PUT_IF_ABSENT:
+          return db.write(tx, kv, Constants.NOOVERWRITE);
+        case UPDATE:
+          updatedValue = db.update(tx, key, function);
+          return true;
+        case CAS:
+          return db.compareAndSet(tx, key, expect, update);
+        default:
+          throw new IllegalStateException("Unknown op " + op);
+      }
+    }
+
+    /**
+     * Write the entry without nested transactions, recording errors and
+     * proceeding with the next kv of a batch.
+     */
+    void applyEach(Transaction tx) {
+      if (op == Op.ATOMIC) {
+        // partial writes cannot be rolled back alone, let the transaction fail
+        value = apply(tx);
+        return;
+      }
+      if (op != Op.BATCH && op != Op.MERGE) {
+        try {
+          value = apply(tx);
+        } catch (Throwable e) {
+          error = e;
+        }
+        return;
+      }
+      for (KeyValue kv : kvs) {
+        try {
+          put(tx, kv);
+        } catch (Throwable e) {
+          // log error, report key as failed and proceed to next kv
+          logger().error("Batch put error.", e);
+          failed(kv);
+        }
+      }
+      value = true;
+    }
+
+    /**
+     * Write a single kv of the entry, or merge it if the entry hold deltas.
+     */
+    void put(Transaction tx, KeyValue kv) {
+      if (op == Op.MERGE) {
+        db.merge(tx, kv);
+      } else {
+        db.write(tx, kv, 0, expiresAt);
+      }
+    }
+
+    /**
+     * Number of key and value bytes written.
+     */
+    long bytes() {
+      long bytes = 0;
+      switch (op) {
+        case PUT:
+        case PUT_IF_ABSENT:
+          return kv == null ? 0 : kv.size();
+        case UPDATE:
+          return key.length + (updatedValue == null ? 0 : updatedValue.length);
+        case CAS:
+          return key.length + (update == null ? 0 : update.length);
+        case DELETE:
+          return key == null ? 0 : key.length;
+        case RESERVE:
+          return key.length + size;
+        case BATCH:
+        case MERGE:
+          for (KeyValue kv : kvs) {
+            bytes += kv == null ? 0 : kv.size();
+          }
+          return bytes;
+        case ATOMIC:
+          for (DbKeyValue entry : entries) {
+            bytes += entry.kv().size();
+          }
+          return bytes;
+        default:
+          return 0;
+      }
+    }
+
+    void failed(KeyValue kv) {
+      if (failed == null) {
+        failed = new ArrayList<>();
+      }
+      failed.add(kv == null ? null : kv.keyBytes());
+    }
+
+    void complete(long sequence, long latency) {
+      if (op == Op.BATCH || op == Op.MERGE || op == Op.ATOMIC) {
+        int count = op == Op.ATOMIC ? entries.size() : kvs.size();
+        if (error != null) {
+          logger().error("Batch error.", error);
+          // none of the kvs were written
+          sequence = BatchResult.NOT_COMMITTED;
+          failed = null;
+          if (op != Op.ATOMIC) {
+            kvs.forEach(this::failed);
+          } else {
+            entries.forEach(entry -> failed(entry == null ? null : entry.kv()));
+          }
+        }
+        if (ack != null) {
+          ack.call(new BatchResult(sequence, count, latency, failed));
+        }
+      } else if (op == Op.UPDATE) {
+        if (error != null) {
+          updated.onError(error);
+        } else {
+          updated.onNext(updatedValue);
+          updated.onCompleted();
+        }
+      } else if (error != null) {
+        result.onError(error);
+      } else {
+        result.onNext(value);
+        result.onCompleted();
+      }
+    }
+
+    void clear() {
+      op = null;
+      db = null;
+      kv = null;
+      key = null;
+      kvs = null;
+      entries = null;
+      size = 0;
+      valueWriter = null;
+      expiresAt = 0;
+      function = null;
+      expect = null;
+      update = null;
+      updated = null;
+      updatedValue = null;
+      result = null;
+      ack = null;
+      failed = null;
+      value = false;
+      error = null;
+    }
+  }
+}
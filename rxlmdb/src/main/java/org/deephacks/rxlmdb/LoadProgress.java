@@ -0,0 +1,69 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+/**
+ * Progress of a bulk load, emitted when a sorted run has been spilled,
+ * when a chunk of merged kvs has been committed and when the load is done.
+ */
+public class LoadProgress {
+  public enum Phase {
+    /** sorting input into runs on disk */
+    SPILL,
+    /** merging runs into the database */
+    MERGE,
+    DONE
+  }
+
+  private final Phase phase;
+  private final long read;
+  private final int runs;
+  private final long written;
+
+  LoadProgress(Phase phase, long read, int runs, long written) {
+    this.phase = phase;
+    this.read = read;
+    this.runs = runs;
+    this.written = written;
+  }
+
+  public Phase getPhase() {
+    return phase;
+  }
+
+  /** number of kvs read from the input */
+  public long getRead() {
+    return read;
+  }
+
+  /** number of sorted runs spilled to disk */
+  public int getRuns() {
+    return runs;
+  }
+
+  /** number of unique keys committed to the database */
+  public long getWritten() {
+    return written;
+  }
+
+  @Override
+  public String toString() {
+    return "LoadProgress{" +
+      "phase=" + phase +
+      ", read=" + read +
+      ", runs=" + runs +
+      ", written=" + written +
+      '}';
+  }
+}
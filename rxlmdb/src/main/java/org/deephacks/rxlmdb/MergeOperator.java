@@ -0,0 +1,142 @@
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.DirectBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Combine deltas into the value of a key, registered per database. Deltas
+ * of the same key are combined in memory and merged into the stored value
+ * once per write transaction, instead of reading and writing the value for
+ * every delta.
+ *
+ * @see RxDb#merge(rx.Observable)
+ */
+public interface MergeOperator {
+  /**
+   * Merge a delta into the current value. The value point into the memory
+   * map and is only valid during the call.
+   *
+   * @param value current value or null if the key does not exist.
+   * @return the new value.
+   */
+  byte[] merge(DirectBuffer value, byte[] delta);
+
+  /**
+   * Combine two deltas of the same key into one delta, which must give
+   * the same result as merging them one after the other.
+   */
+  byte[] combine(byte[] delta1, byte[] delta2);
+
+  /**
+   * Base class of operators on 8 byte big endian longs.
+   */
+  abstract class LongMergeOperator implements MergeOperator {
+
+    static long toLong(DirectBuffer value) {
+      return value == null ? 0 : value.getLong(0, ByteOrder.BIG_ENDIAN);
+    }
+
+    static long toLong(byte[] value) {
+      return ByteBuffer.wrap(value).getLong();
+    }
+
+    static byte[] toBytes(long value) {
+      return ByteBuffer.allocate(8).putLong(value).array();
+    }
+  }
+
+  /**
+   * Add 8 byte big endian longs.
+   */
+  class LongAdd extends LongMergeOperator {
+
+    @Override
+    public byte[] merge(DirectBuffer value, byte[] delta) {
+      return toBytes(toLong(value) + toLong(delta));
+    }
+
+    @Override
+    public byte[] combine(byte[] delta1, byte[] delta2) {
+      return toBytes(toLong(delta1) + toLong(delta2));
+    }
+  }
+
+  /**
+   * Keep the largest 8 byte big endian long.
+   */
+  class LongMax extends LongMergeOperator {
+
+    @Override
+    public byte[] merge(DirectBuffer value, byte[] delta) {
+      return value == null ? delta : toBytes(Math.max(toLong(value), toLong(delta)));
+    }
+
+    @Override
+    public byte[] combine(byte[] delta1, byte[] delta2) {
+      return toLong(delta1) >= toLong(delta2) ? delta1 : delta2;
+    }
+  }
+
+  /**
+   * Keep the smallest 8 byte big endian long.
+   */
+  class LongMin extends LongMergeOperator {
+
+    @Override
+    public byte[] merge(DirectBuffer value, byte[] delta) {
+      return value == null ? delta : toBytes(Math.min(toLong(value), toLong(delta)));
+    }
+
+    @Override
+    public byte[] combine(byte[] delta1, byte[] delta2) {
+      return toLong(delta1) <= toLong(delta2) ? delta1 : delta2;
+    }
+  }
+
+  /**
+   * Append fixed size elements to a list and keep the most recent
+   * maxElements. Values and deltas are concatenated elements.
+   */
+  class BoundedAppend implements MergeOperator {
+    private final int elementSize;
+    private final int maxElements;
+
+    public BoundedAppend(int elementSize, int maxElements) {
+      if (elementSize < 1 || maxElements < 1) {
+        throw new IllegalArgumentException("elementSize and maxElements must be positive");
+      }
+      this.elementSize = elementSize;
+      this.maxElements = maxElements;
+    }
+
+    @Override
+    public byte[] merge(DirectBuffer value, byte[] delta) {
+      checkSize(delta);
+      int length = value == null ? 0 : value.capacity();
+      int total = Math.min(length + delta.length, elementSize * maxElements);
+      byte[] result = new byte[total];
+      // drop the oldest elements that no longer fit
+      int fromDelta = Math.min(delta.length, total);
+      int fromValue = total - fromDelta;
+      if (fromValue > 0) {
+        value.getBytes(length - fromValue, result, 0, fromValue);
+      }
+      System.arraycopy(delta, delta.length - fromDelta, result, fromValue, fromDelta);
+      return result;
+    }
+
+    @Override
+    public byte[] combine(byte[] delta1, byte[] delta2) {
+      checkSize(delta1);
+      return merge(new DirectBuffer(delta1), delta2);
+    }
+
+    private void checkSize(byte[] delta) {
+      if (delta.length % elementSize != 0) {
+        throw new IllegalArgumentException("Delta is not a multiple of " + elementSize + " bytes");
+      }
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.subjects.PublishSubject;
+import rx.subjects.SerializedSubject;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Combine deltas per key in memory and hand them over to the writer thread.
+ * Deltas are handed over as soon as the writer has acknowledged the previous
+ * hand over, so deltas pile up and combine while the writer is busy.
+ */
+class MergeSubscriber extends Subscriber<KeyValue> implements Loggable {
+  /** hand over even if the writer is busy when this many keys are waiting */
+  static final int MAX_KEYS = LmdbWriter.DEFAULT_MAX_BATCH;
+
+  final RxDb db;
+  final LmdbWriter writer;
+  final MergeOperator operator;
+  /** hand over deltas that arrived while the writer was busy */
+  final Scheduler.Worker worker;
+  final SerializedSubject<BatchResult, BatchResult> result;
+  /** hand overs that have not been acknowledged yet */
+  final AtomicInteger pending = new AtomicInteger();
+  /** combined deltas waiting for hand over, guarded by this */
+  private final LinkedHashMap<ByteBuffer, byte[]> deltas = new LinkedHashMap<>();
+  private boolean done;
+  private boolean terminated;
+  private Throwable error;
+
+  MergeSubscriber(RxDb db, LmdbWriter writer) {
+    this.db = db;
+    this.writer = writer;
+    this.operator = db.mergeOperator;
+    this.worker = db.scheduler.createWorker();
+    this.result = PublishSubject.<BatchResult>create().toSerialized();
+  }
+
+  @Override
+  public synchronized void onNext(KeyValue kv) {
+    ByteBuffer key = ByteBuffer.wrap(kv.keyBytes());
+    byte[] delta = kv.valueBytes();
+    byte[] combined = deltas.get(key);
+    deltas.put(key, combined == null ? delta : operator.combine(combined, delta));
+    if (pending.get() == 0 || deltas.size() >= MAX_KEYS) {
+      handover();
+    }
+  }
+
+  @Override
+  public void onCompleted() {
+    synchronized (this) {
+      done = true;
+      handover();
+    }
+    terminate();
+  }
+
+  @Override
+  public void onError(Throwable e) {
+    logger().error("Merge error.", e);
+    synchronized (this) {
+      error = e;
+    }
+    onCompleted();
+  }
+
+  /**
+   * Called with the lock held. Acknowledgements must never take the lock
+   * since the writer thread would wait for a hand over that wait for the
+   * writer thread to free up space.
+   */
+  private void handover() {
+    if (deltas.isEmpty()) {
+      return;
+    }
+    List<KeyValue> kvs = new ArrayList<>(deltas.size());
+    deltas.forEach((key, delta) -> kvs.add(new KeyValue(key.array(), delta)));
+    deltas.clear();
+    pending.incrementAndGet();
+    try {
+      writer.merge(db, kvs, this::acknowledge);
+    } catch (Throwable e) {
+      logger().error("Merge rejected.", e);
+      List<byte[]> keys = new ArrayList<>(kvs.size());
+      kvs.forEach(kv -> keys.add(kv.key()));
+      acknowledge(new BatchResult(BatchResult.NOT_COMMITTED, kvs.size(), 0, keys));
+    }
+  }
+
+  private void acknowledge(BatchResult batchResult) {
+    result.onNext(batchResult);
+    if (pending.decrementAndGet() == 0) {
+      worker.schedule(this::drain);
+    }
+  }
+
+  private void drain() {
+    synchronized (this) {
+      if (pending.get() == 0) {
+        handover();
+      }
+    }
+    terminate();
+  }
+
+  private void terminate() {
+    Throwable e;
+    synchronized (this) {
+      // only terminate once upstream is done and every delta has been acknowledged
+      if (!done || terminated || pending.get() != 0 || !deltas.isEmpty()) {
+        return;
+      }
+      terminated = true;
+      e = error;
+    }
+    worker.unsubscribe();
+    if (e != null) {
+      result.onError(e);
+    } else {
+      result.onCompleted();
+    }
+  }
+}
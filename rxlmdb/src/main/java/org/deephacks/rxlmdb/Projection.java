@@ -0,0 +1,165 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.DirectBuffer;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mapper that read typed fields at fixed offsets of values straight from
+ * the memory map, so that only the fields reach the heap instead of the
+ * whole value. Fields are returned in the order they were added, as a
+ * boxed Long, Integer, Short, Byte, Double or byte[] for the key and
+ * byte fields.
+ * <p/>
+ * Values that are too short to hold every field map to null, which is
+ * skipped by scans.
+ */
+public final class Projection implements DirectMapper<Object[]> {
+  private final Field[] fields;
+  private final ByteOrder order;
+  private final int minLength;
+
+  private Projection(Builder builder) {
+    this.fields = builder.fields.toArray(new Field[builder.fields.size()]);
+    this.order = builder.order;
+    int minLength = 0;
+    for (Field field : fields) {
+      minLength = Math.max(minLength, field.offset + field.length);
+    }
+    this.minLength = minLength;
+  }
+
+  @Override
+  public Object[] map(DirectBuffer key, DirectBuffer value) {
+    if (value.capacity() < minLength) {
+      return null;
+    }
+    Object[] result = new Object[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      Field field = fields[i];
+      switch (field.type) {
+        case KEY:
+          byte[] k = new byte[key.capacity()];
+          key.getBytes(0, k);
+          result[i] = k;
+          break;
+        case INT64:
+          result[i] = value.getLong(field.offset, order);
+          break;
+        case INT32:
+          result[i] = value.getInt(field.offset, order);
+          break;
+        case INT16:
+          result[i] = value.getShort(field.offset, order);
+          break;
+        case INT8:
+          result[i] = value.getByte(field.offset);
+          break;
+        case FLOAT64:
+          result[i] = value.getDouble(field.offset, order);
+          break;
+        case BYTES:
+          byte[] v = new byte[field.length];
+          value.getBytes(field.offset, v);
+          result[i] = v;
+          break;
+        default:
+          throw new IllegalStateException("Unknown field " + field.type);
+      }
+    }
+    return result;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private enum Type {
+    KEY, INT64, INT32, INT16, INT8, FLOAT64, BYTES
+  }
+
+  private static final class Field {
+    final Type type;
+    final int offset;
+    /** bytes read from the value */
+    final int length;
+
+    Field(Type type, int offset, int length) {
+      if (offset < 0 || length < 0) {
+        throw new IllegalArgumentException("offset and length must not be negative");
+      }
+      this.type = type;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  public static class Builder {
+    private final List<Field> fields = new ArrayList<>();
+    private ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+    /**
+     * Byte order of numeric fields, big endian by default.
+     */
+    public Builder order(ByteOrder order) {
+      this.order = order;
+      return this;
+    }
+
+    /** copy of the key */
+    public Builder key() {
+      fields.add(new Field(Type.KEY, 0, 0));
+      return this;
+    }
+
+    public Builder int64(int offset) {
+      fields.add(new Field(Type.INT64, offset, 8));
+      return this;
+    }
+
+    public Builder int32(int offset) {
+      fields.add(new Field(Type.INT32, offset, 4));
+      return this;
+    }
+
+    public Builder int16(int offset) {
+      fields.add(new Field(Type.INT16, offset, 2));
+      return this;
+    }
+
+    public Builder int8(int offset) {
+      fields.add(new Field(Type.INT8, offset, 1));
+      return this;
+    }
+
+    public Builder float64(int offset) {
+      fields.add(new Field(Type.FLOAT64, offset, 8));
+      return this;
+    }
+
+    /** copy of length bytes of the value */
+    public Builder bytes(int offset, int length) {
+      fields.add(new Field(Type.BYTES, offset, length));
+      return this;
+    }
+
+    public Projection build() {
+      return new Projection(this);
+    }
+  }
+}
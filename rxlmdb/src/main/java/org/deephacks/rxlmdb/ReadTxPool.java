@@ -0,0 +1,94 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.Env;
+import org.fusesource.lmdbjni.LMDBException;
+import org.fusesource.lmdbjni.Transaction;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Read transactions that are reset when they end and renewed when they are
+ * handed out again, which is much cheaper than aborting and creating them
+ * since a reset transaction keep its reader slot and its handle.
+ * <p/>
+ * Reset transactions hold reader slots, so the pool never keep more than
+ * half of maxReaders and transactions that do not fit are aborted. The
+ * environment is opened with NOTLS so transactions can be handed out to
+ * any thread.
+ */
+final class ReadTxPool implements Loggable {
+  final Env env;
+  final int capacity;
+  private final ArrayBlockingQueue<Transaction> idle;
+  private volatile boolean closed;
+
+  ReadTxPool(Env env, int size) {
+    this.env = env;
+    this.capacity = (int) Math.max(1, Math.min(size, env.getMaxReaders() / 2));
+    this.idle = new ArrayBlockingQueue<>(capacity);
+  }
+
+  Transaction acquire() {
+    Transaction tx = idle.poll();
+    if (tx == null) {
+      return env.createReadTransaction();
+    }
+    try {
+      tx.renew();
+      return tx;
+    } catch (LMDBException e) {
+      logger().error("Renew error.", e);
+      tx.abort();
+      return env.createReadTransaction();
+    }
+  }
+
+  void release(Transaction tx) {
+    if (closed) {
+      tx.abort();
+      return;
+    }
+    try {
+      tx.reset();
+    } catch (LMDBException e) {
+      logger().error("Reset error.", e);
+      tx.abort();
+      return;
+    }
+    if (!idle.offer(tx)) {
+      tx.abort();
+    } else if (closed) {
+      // raced with close
+      abortIdle();
+    }
+  }
+
+  int idle() {
+    return idle.size();
+  }
+
+  void close() {
+    closed = true;
+    abortIdle();
+  }
+
+  private void abortIdle() {
+    Transaction tx;
+    while ((tx = idle.poll()) != null) {
+      tx.abort();
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.Env;
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Track open read transactions and periodically check them on a background
+ * thread. A check mark snapshots with expired leases, report tracked
+ * readers that are older than the max age and clear reader slots left
+ * behind by processes that died, using mdb_reader_check.
+ * <p/>
+ * Snapshots are always tracked, other read transactions only if a max
+ * age is set since tracking cost a little for every read.
+ */
+final class ReaderMonitor implements Loggable {
+  static final long DEFAULT_INTERVAL_MILLIS = 1000;
+
+  final Env env;
+  final long intervalMillis;
+  final long maxAgeNanos;
+  final Set<RxTx> readers = ConcurrentHashMap.newKeySet();
+  final Set<Snapshot> snapshots = ConcurrentHashMap.newKeySet();
+  private Scheduler.Worker worker;
+  private boolean closed;
+
+  ReaderMonitor(Env env, long intervalMillis, long maxAgeNanos) {
+    this.env = env;
+    this.intervalMillis = intervalMillis;
+    this.maxAgeNanos = maxAgeNanos;
+  }
+
+  boolean isTracking() {
+    return maxAgeNanos > 0;
+  }
+
+  /**
+   * Start periodic checks unless already started.
+   */
+  synchronized void start() {
+    if (worker == null && !closed) {
+      worker = Schedulers.newThread().createWorker();
+      worker.schedulePeriodically(this::check, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  void register(RxTx tx) {
+    readers.add(tx);
+  }
+
+  void unregister(RxTx tx) {
+    readers.remove(tx);
+  }
+
+  void register(Snapshot snapshot) {
+    snapshots.add(snapshot);
+    start();
+  }
+
+  void unregister(Snapshot snapshot) {
+    snapshots.remove(snapshot);
+  }
+
+  List<RxTx> readers() {
+    return new ArrayList<>(readers);
+  }
+
+  /**
+   * @return number of reader slots cleared by mdb_reader_check.
+   */
+  synchronized int check() {
+    if (closed) {
+      return 0;
+    }
+    int cleared = 0;
+    try {
+      for (Snapshot snapshot : snapshots) {
+        if (snapshot.isExpired() && snapshot.expire()) {
+          logger().warn("Snapshot of {} expired after {} ms, its lease ended.",
+            snapshot.getOwner(), snapshot.getAge(TimeUnit.MILLISECONDS));
+        }
+      }
+      if (maxAgeNanos > 0) {
+        for (RxTx tx : readers) {
+          if (!tx.reported && tx.getAge(TimeUnit.NANOSECONDS) > maxAgeNanos) {
+            tx.reported = true;
+            logger().warn("Read transaction of {} open for {} ms.", tx.getOwner(), tx.getAge(TimeUnit.MILLISECONDS));
+          }
+        }
+      }
+      cleared = env.readerCheck();
+      if (cleared > 0) {
+        logger().warn("Cleared {} stale reader slots.", cleared);
+      }
+    } catch (Throwable e) {
+      logger().error("Reader check error.", e);
+    }
+    return cleared;
+  }
+
+  /**
+   * Stop checking and end every snapshot so that the environment can be closed.
+   */
+  synchronized void close() {
+    closed = true;
+    if (worker != null) {
+      worker.unsubscribe();
+    }
+    snapshots.forEach(Snapshot::end);
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * A bounded lock-free multi-producer single-consumer ring buffer of
+ * pre-allocated entries. Producers claim a sequence, fill the entry
+ * and publish it. The consumer drain published entries in order and
+ * release them back to producers when done with them.
+ * <p/>
+ * Each slot carry its own sequence which tell if the slot is free for
+ * a producer (sequence == claimed), published (sequence == claimed + 1)
+ * or still held by the consumer from the previous lap.
+ */
+final class RingBuffer<E> {
+  private final E[] entries;
+  private final AtomicLongArray sequences;
+  private final AtomicLong tail = new AtomicLong();
+  private final int capacity;
+  private final int mask;
+  /** only touched by the consumer */
+  private long head;
+
+  @SuppressWarnings("unchecked")
+  RingBuffer(int size, Supplier<E> factory) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Size must be positive " + size);
+    }
+    this.capacity = Integer.highestOneBit(size) == size ? size : Integer.highestOneBit(size) << 1;
+    this.mask = capacity - 1;
+    this.entries = (E[]) new Object[capacity];
+    this.sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      entries[i] = factory.get();
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * @return claimed sequence or -1 if the buffer is full.
+   */
+  long tryClaim() {
+    while (true) {
+      long seq = tail.get();
+      long diff = sequences.get(index(seq)) - seq;
+      if (diff == 0) {
+        if (tail.compareAndSet(seq, seq + 1)) {
+          return seq;
+        }
+      } else if (diff < 0) {
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * Claim a sequence and wait according to the wait strategy while the buffer is full.
+   */
+  long claim(WaitStrategy strategy) {
+    int counter = 0;
+    long seq;
+    while ((seq = tryClaim()) < 0) {
+      strategy.idle(counter++);
+    }
+    return seq;
+  }
+
+  E get(long seq) {
+    return entries[index(seq)];
+  }
+
+  void publish(long seq) {
+    sequences.lazySet(index(seq), seq + 1);
+  }
+
+  /**
+   * Add published entries, in order, to the list without releasing them.
+   *
+   * @return number of entries added.
+   */
+  int drain(List<E> list, int max) {
+    return drain(list, 0, max);
+  }
+
+  /**
+   * Same as drain but skip entries already drained and not yet released.
+   *
+   * @param offset number of entries, counted from head, that have been drained already.
+   * @param max max number of entries to drain, counted from head.
+   * @return number of entries added.
+   */
+  int drain(List<E> list, int offset, int max) {
+    int n = offset;
+    while (n < max) {
+      long seq = head + n;
+      if (sequences.get(index(seq)) != seq + 1) {
+        break;
+      }
+      list.add(entries[index(seq)]);
+      n++;
+    }
+    return n - offset;
+  }
+
+  /**
+   * Give back drained entries to producers.
+   */
+  void release(int n) {
+    for (int i = 0; i < n; i++) {
+      long seq = head + i;
+      sequences.lazySet(index(seq), seq + capacity);
+    }
+    head += n;
+  }
+
+  /**
+   * Number of claimed entries not yet released by the consumer, only
+   * accurate when called from the consumer.
+   */
+  int size() {
+    return (int) (tail.get() - head);
+  }
+
+  boolean isEmpty() {
+    return size() == 0;
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  private int index(long seq) {
+    return (int) seq & mask;
+  }
+}
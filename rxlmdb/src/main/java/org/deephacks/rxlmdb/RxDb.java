@@ -19,11 +19,19 @@ import rx.Scheduler;
 import rx.Subscriber;
 import rx.exceptions.OnErrorFailedException;
 import rx.subjects.PublishSubject;
-import rx.subjects.SerializedSubject;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 public class RxDb {
   /** copy by default */
@@ -32,6 +40,18 @@ public class RxDb {
   final Database db;
   final String name;
   final Scheduler scheduler;
+  final MergeOperator mergeOperator;
+  /** expiry times of keys, null if TTL is not enabled */
+  final Expiry expiry;
+  /** buffered puts and deletes, null if not enabled */
+  final WriteBuffer writeBuffer;
+  /** keys that may exist, null if not enabled */
+  private volatile BloomFilter bloomFilter;
+  /** filter being rebuilt that also receive added keys */
+  private volatile BloomFilter rebuilding;
+  private final long bloomFilterKeys;
+  /** values of hot keys, null if not enabled */
+  final ValueCache cache;
   final int defaultBuffer = 512;
 
   private RxDb(Builder builder) {
@@ -39,6 +59,32 @@ public class RxDb {
     this.name = Optional.ofNullable(builder.name).orElse("default");
     this.db = lmdb.env.openDatabase(this.name);
     this.scheduler = lmdb.scheduler;
+    this.mergeOperator = builder.mergeOperator;
+    if (builder.ttl) {
+      this.expiry = new Expiry(this);
+      lmdb.sweeper().register(expiry);
+    } else {
+      this.expiry = null;
+    }
+    if (builder.writeBufferSize > 0) {
+      this.writeBuffer = new WriteBuffer(this, builder.writeBufferSize);
+      lmdb.writeBuffers.add(writeBuffer);
+    } else {
+      this.writeBuffer = null;
+    }
+    this.cache = builder.cacheSize > 0 ? new ValueCache(builder.cacheSize) : null;
+    this.bloomFilterKeys = builder.bloomFilterKeys;
+    if (bloomFilterKeys > 0) {
+      try {
+        this.bloomFilter = BloomFilter.load(bloomFilterPath(), bloomFilterKeys, lmdb.env.info().getLastTxnId());
+      } catch (IOException e) {
+        this.bloomFilter = null;
+      }
+      if (bloomFilter == null) {
+        this.bloomFilter = new BloomFilter(bloomFilterKeys);
+        rebuildBloomFilter();
+      }
+    }
   }
 
   /**
@@ -50,15 +96,181 @@ public class RxDb {
   }
 
   public Boolean put(KeyValue kv) {
-    db.put(kv.key(), kv.value());
+    if (writeBuffer != null) {
+      writeBuffer.put(kv);
+      return true;
+    }
+    if (lmdb.groupCommit) {
+      return putAsync(kv).toBlocking().first();
+    }
+    write(kv, 0);
     return true;
   }
 
+  /**
+   * Put a kv through the writer thread, which commit concurrent writes from
+   * many threads in a single transaction. The observable complete when the
+   * transaction that contains the kv has been committed.
+   * <p/>
+   * Results are emitted on the writer thread. Subscribers that block, for
+   * example by writing synchronously, deadlock the writer and should
+   * observeOn another scheduler.
+   */
+  public Observable<Boolean> putAsync(KeyValue kv) {
+    return writer().put(this, kv);
+  }
+
   public Boolean put(RxTx tx, KeyValue kv) {
-    db.put(tx.tx, kv.key(), kv.value());
+    write(tx.tx, kv, 0);
+    return true;
+  }
+
+  /**
+   * Reserve size bytes for the value of key and let the writer serialize
+   * the value directly into the memory map.
+   */
+  public Boolean put(byte[] key, int size, ValueWriter writer) {
+    if (lmdb.groupCommit) {
+      return putAsync(key, size, writer).toBlocking().first();
+    }
+    try (Transaction tx = writeTransaction()) {
+      reserve(tx, key, size, writer);
+      tx.commit();
+    }
+    return true;
+  }
+
+  /**
+   * Reserve and write a value through the writer thread, which call the
+   * writer from the writer thread.
+   *
+   * @see RxDb#put(byte[], int, ValueWriter)
+   */
+  public Observable<Boolean> putAsync(byte[] key, int size, ValueWriter writer) {
+    return writer().reserve(this, key, size, writer);
+  }
+
+  /**
+   * Same as reserve put but the user is in charge of the transaction. The
+   * reserved space is not rolled back if the writer fail, abort the
+   * transaction or overwrite the value.
+   *
+   * @see RxDb#put(byte[], int, ValueWriter)
+   */
+  public Boolean put(RxTx tx, byte[] key, int size, ValueWriter writer) {
+    reserve(tx.tx, key, size, writer);
+    return true;
+  }
+
+  /**
+   * Put a kv that expire after the TTL, requires TTL to be enabled for the
+   * database. Expired keys are deleted by a background sweeper and remain
+   * visible until then. A put without TTL and a delete clear the TTL of the
+   * key, while update, merge and compare-and-set keep it.
+   *
+   * @see RxDb.Builder#ttl()
+   */
+  public Boolean put(KeyValue kv, long ttl, TimeUnit unit) {
+    if (lmdb.groupCommit) {
+      return putAsync(kv, ttl, unit).toBlocking().first();
+    }
+    long expiresAt = expiresAt(ttl, unit);
+    try (Transaction tx = writeTransaction()) {
+      write(tx, kv, 0, expiresAt);
+      tx.commit();
+    }
+    return true;
+  }
+
+  /**
+   * Put a kv that expire after the TTL through the writer thread.
+   *
+   * @see RxDb#put(KeyValue, long, TimeUnit)
+   */
+  public Observable<Boolean> putAsync(KeyValue kv, long ttl, TimeUnit unit) {
+    try {
+      return writer().put(this, kv, expiresAt(ttl, unit));
+    } catch (Throwable e) {
+      return Observable.error(e);
+    }
+  }
+
+  public Boolean put(RxTx tx, KeyValue kv, long ttl, TimeUnit unit) {
+    write(tx.tx, kv, 0, expiresAt(ttl, unit));
     return true;
   }
 
+  /**
+   * Delete keys that have expired now instead of waiting for the
+   * background sweeper.
+   *
+   * @return number of deleted keys.
+   */
+  public long deleteExpired() {
+    checkTtl();
+    return expiry.sweep(System.currentTimeMillis(), lmdb.sweepChunkSize);
+  }
+
+  private long expiresAt(long ttl, TimeUnit unit) {
+    checkTtl();
+    return System.currentTimeMillis() + unit.toMillis(ttl);
+  }
+
+  private void checkTtl() {
+    if (expiry == null) {
+      throw new IllegalStateException("TTL is not enabled for " + name);
+    }
+  }
+
+  /**
+   * Put the kv only if the key does not exist, through the writer thread.
+   *
+   * @return true if the kv was written, false if the key already existed.
+   */
+  public Observable<Boolean> putIfAbsent(KeyValue kv) {
+    return writer().putIfAbsent(this, kv);
+  }
+
+  public Boolean putIfAbsent(RxTx tx, KeyValue kv) {
+    return write(tx.tx, kv, Constants.NOOVERWRITE);
+  }
+
+  /**
+   * Atomically replace the value of the key with what the function return,
+   * or delete the key if the function return null. The function get the
+   * current value, or null if the key does not exist, as a buffer that point
+   * into the memory map and is only valid during the call.
+   * <p/>
+   * The function is called by the writer thread, which run concurrent updates
+   * in a single transaction in the order they were submitted. It may be
+   * called more than once if the transaction is retried and should not have
+   * side effects.
+   *
+   * @return the new value, null if the key was deleted.
+   */
+  public Observable<byte[]> update(byte[] key, Function<DirectBuffer, byte[]> function) {
+    return writer().update(this, key, function);
+  }
+
+  public byte[] update(RxTx tx, byte[] key, Function<DirectBuffer, byte[]> function) {
+    return update(tx.tx, key, function);
+  }
+
+  /**
+   * Atomically set the value of the key to update if the current value equal
+   * expect, through the writer thread. A null expect match a key that does
+   * not exist and a null update delete the key.
+   *
+   * @return true if the value was replaced.
+   */
+  public Observable<Boolean> compareAndSet(byte[] key, byte[] expect, byte[] update) {
+    return writer().compareAndSet(this, key, expect, update);
+  }
+
+  public Boolean compareAndSet(RxTx tx, byte[] key, byte[] expect, byte[] update) {
+    return compareAndSet(tx.tx, key, expect, update);
+  }
+
   /**
    * Same as regular put but the user is in charge of the transaction.
    *
@@ -85,20 +297,246 @@ public class RxDb {
   }
 
   public void append(RxTx tx, KeyValue kv) {
-    db.put(tx.tx, kv.key(), kv.value(), Constants.APPEND);
+    write(tx.tx, kv, Constants.APPEND);
   }
 
   public void append(KeyValue kv) {
-    db.put(kv.key(), kv.value(), Constants.APPEND);
+    write(kv, Constants.APPEND);
+  }
+
+  /**
+   * Every write path end up here. Kvs backed by off heap buffers are handed
+   * over to LMDB without copying, buffers that wrap a heap array have no
+   * native address and are copied.
+   *
+   * @return false if flags contain NOOVERWRITE and the key already exist.
+   */
+  boolean write(Transaction tx, KeyValue kv, int flags) {
+    return write(tx, kv, flags, 0);
+  }
+
+  /**
+   * @param expiresAt expiry time in millis, or 0 to clear any TTL of the key.
+   */
+  boolean write(Transaction tx, KeyValue kv, int flags, long expiresAt) {
+    if (!store(tx, kv, flags)) {
+      return false;
+    }
+    if (expiresAt > 0) {
+      expiry.expire(tx, kv.keyBytes(), expiresAt);
+    } else if (expiry != null) {
+      expiry.clear(tx, kv.keyBytes());
+    }
+    return true;
+  }
+
+  private boolean store(Transaction tx, KeyValue kv, int flags) {
+    addKey(kv);
+    if (cache != null) {
+      if (kv.isOffHeap()) {
+        cache.invalidate(tx.getId(), kv.keyBuffer());
+      } else {
+        cache.invalidate(tx.getId(), kv.keyBytes());
+      }
+    }
+    if (!kv.isOffHeap()) {
+      // return the existing value instead of failing on NOOVERWRITE
+      return db.put(tx, kv.keyBytes(), kv.valueBytes(), flags) == null;
+    }
+    try {
+      db.put(tx, kv.keyBuffer(), kv.valueBuffer(), flags);
+      return true;
+    } catch (LMDBException e) {
+      if ((flags & Constants.NOOVERWRITE) != 0 && e.getErrorCode() == LMDBException.KEYEXIST) {
+        return false;
+      }
+      throw e;
+    }
+  }
+
+  void reserve(Transaction tx, byte[] key, int size, ValueWriter writer) {
+    addKey(key);
+    invalidate(tx, key);
+    writer.write(db.reserve(tx, DirectKeys.wrap(key), size));
+    if (expiry != null) {
+      expiry.clear(tx, key);
+    }
+  }
+
+  byte[] update(Transaction tx, byte[] key, Function<DirectBuffer, byte[]> function) {
+    invalidate(tx, key);
+    DirectBuffer keyBuffer = DirectKeys.wrap(key);
+    DirectBuffer current = new DirectBuffer();
+    boolean found = db.get(tx, keyBuffer, current) == 0;
+    byte[] value = function.apply(found ? current : null);
+    if (value != null) {
+      addKey(key);
+      db.put(tx, key, value);
+    } else if (found) {
+      delete(tx, key);
+    }
+    return value;
+  }
+
+  void merge(Transaction tx, KeyValue delta) {
+    byte[] bytes = delta.valueBytes();
+    update(tx, delta.keyBytes(), value -> mergeOperator.merge(value, bytes));
+  }
+
+  boolean compareAndSet(Transaction tx, byte[] key, byte[] expect, byte[] update) {
+    DirectBuffer keyBuffer = DirectKeys.wrap(key);
+    DirectBuffer current = new DirectBuffer();
+    boolean found = db.get(tx, keyBuffer, current) == 0;
+    if (found != (expect != null)) {
+      return false;
+    }
+    if (found && (current.capacity() != expect.length
+      || DirectBufferComparator.compareTo(current, 0, expect.length, new DirectBuffer(expect), 0, expect.length) != 0)) {
+      return false;
+    }
+    invalidate(tx, key);
+    if (update != null) {
+      addKey(key);
+      db.put(tx, key, update);
+    } else if (found) {
+      delete(tx, key);
+    }
+    return true;
+  }
+
+  /**
+   * Every delete of a single key end up here.
+   */
+  boolean delete(Transaction tx, byte[] key) {
+    invalidate(tx, key);
+    if (expiry != null) {
+      // keep a recreated key from inheriting the TTL
+      expiry.clear(tx, key);
+    }
+    return db.delete(tx, key);
+  }
+
+  /**
+   * Called by write transactions before a key is written or deleted.
+   */
+  private void invalidate(Transaction tx, byte[] key) {
+    if (cache != null) {
+      cache.invalidate(tx.getId(), key);
+    }
+  }
+
+  /**
+   * @see RxDb#write(Transaction, KeyValue, int)
+   */
+  void write(KeyValue kv, int flags) {
+    flush();
+    if (expiry != null || cache != null || bloomFilter != null) {
+      // expiry times are written in the same transaction, the cache need
+      // the id of the transaction and keys must be added to the Bloom filter
+      // inside the transaction for a rebuild to wait for them
+      try (Transaction tx = writeTransaction()) {
+        write(tx, kv, flags);
+        tx.commit();
+      }
+    } else if (kv.isOffHeap()) {
+      db.put(kv.keyBuffer(), kv.valueBuffer(), flags);
+    } else {
+      db.put(kv.keyBytes(), kv.valueBytes(), flags);
+    }
+  }
+
+  /**
+   * @see RxDb#load(RxTx, Observable)
+   */
+  public Observable<Boolean> load(Observable<KeyValue> values) {
+    return load(lmdb.internalWriteTx(), values);
+  }
+
+  /**
+   * Bulk load kvs with the speed of append when keys arrive in order but
+   * without the risk of corruption when they do not. Keys greater than the
+   * highest key in the database are appended, other keys fall back to a
+   * regular put.
+   */
+  public Observable<Boolean> load(RxTx tx, Observable<KeyValue> values) {
+    PutSubscriber putSubscriber = new LoadSubscriber(this, tx);
+    values.subscribe(putSubscriber);
+    return putSubscriber.result;
+  }
+
+  /**
+   * Bulk loader for unsorted input that may not fit in memory.
+   */
+  public BulkLoader.Builder bulkLoaderBuilder() {
+    return BulkLoader.builder().db(this);
   }
 
   /**
    * Write and commit kvs asynchronously in batches. The user is free to
-   * use choose whatever buffering configuration is needed.
+   * use choose whatever buffering configuration is needed. Lists are handed
+   * over to the writer thread which write each list in a single transaction,
+   * possibly together with other lists and writes that are waiting.
+   * <p/>
+   * Each list is acknowledged, in order, with a BatchResult when it has been
+   * committed. Values are subscribed to right away and results are replayed
+   * to late subscribers, so the result may be ignored. Empty lists are
+   * skipped. The result complete when values complete and every list has
+   * been acknowledged.
    */
-  public void batch(Observable<List<KeyValue>> values) {
-    BatchSubscriber putSubscriber = new BatchSubscriber(this);
+  public Observable<BatchResult> batch(Observable<List<KeyValue>> values) {
+    LmdbWriter writer = writer();
+    BatchSubscriber<KeyValue> putSubscriber = new BatchSubscriber<>(
+      (kvs, ack) -> writer.batch(this, kvs, ack), KeyValue::keyBytes);
     values.subscribe(putSubscriber);
+    return putSubscriber.result;
+  }
+
+  /**
+   * Write kvs in batches that expire after the TTL, counted from when
+   * each list is handed over to the writer thread.
+   *
+   * @see RxDb#batch(Observable)
+   * @see RxDb#put(KeyValue, long, TimeUnit)
+   */
+  public Observable<BatchResult> batch(Observable<List<KeyValue>> values, long ttl, TimeUnit unit) {
+    checkTtl();
+    LmdbWriter writer = writer();
+    BatchSubscriber<KeyValue> putSubscriber = new BatchSubscriber<>(
+      (kvs, ack) -> writer.batch(this, kvs, expiresAt(ttl, unit), ack), KeyValue::keyBytes);
+    values.subscribe(putSubscriber);
+    return putSubscriber.result;
+  }
+
+  /**
+   * Hand over a kv to the writer thread which batch it with whatever other
+   * writes are waiting. Safe to call from many threads without serializing
+   * calls first.
+   */
+  public void batch(KeyValue kv) {
+    writer().batch(this, Collections.singletonList(kv), null);
+  }
+
+  /**
+   * Merge deltas into the values of their keys with the merge operator of
+   * the database. Deltas of the same key are combined in memory while the
+   * writer thread is busy and each key is then read and written once per
+   * transaction, instead of once per delta.
+   * <p/>
+   * A BatchResult is emitted for each set of combined deltas when it has
+   * been committed. Deltas are subscribed to when the result is subscribed
+   * to, so that no result is missed.
+   */
+  public Observable<BatchResult> merge(Observable<KeyValue> deltas) {
+    if (mergeOperator == null) {
+      throw new IllegalStateException("No merge operator registered for " + name);
+    }
+    return Observable.create(subscriber -> {
+      MergeSubscriber mergeSubscriber = new MergeSubscriber(this, writer());
+      // unsubscribing from the results also unsubscribes from the deltas
+      subscriber.add(mergeSubscriber);
+      mergeSubscriber.result.subscribe(subscriber);
+      deltas.subscribe(mergeSubscriber);
+    });
   }
 
   private Observable<Boolean> put(RxTx tx, Observable<KeyValue> values, boolean append) {
@@ -112,7 +550,7 @@ public class RxDb {
    * represented as null.
    */
   public Observable<KeyValue> get(Observable<byte[]> keys) {
-    return get(lmdb.internalReadTx(), KV_MAPPER, keys);
+    return Observable.defer(() -> get(lmdb.internalReadTx(), KV_MAPPER, keys));
   }
 
   /**
@@ -128,7 +566,7 @@ public class RxDb {
    * @see RxDb#get(Observable)
    */
   public <T> Observable<T> get(DirectMapper<T> mapper, Observable<byte[]> keys) {
-    return get(lmdb.internalReadTx(), mapper, keys);
+    return Observable.defer(() -> get(lmdb.internalReadTx(), mapper, keys));
   }
 
   /**
@@ -139,10 +577,25 @@ public class RxDb {
   public <T> Observable<T> get(RxTx tx, DirectMapper<T> mapper, Observable<byte[]> keys) {
     return keys.flatMap(key -> {
       try {
-        ByteBuffer bb = ByteBuffer.allocateDirect(key.length).put(key);
-        DirectBuffer keyBuffer = new DirectBuffer(bb);
-        DirectBuffer valBuffer = new DirectBuffer(0, 0);
+        DirectBuffer keyBuffer = DirectKeys.wrap(key);
+        DirectBuffer valBuffer = DirectKeys.value();
+        DirectBuffer buffered = writeBuffer == null ? null : writeBuffer.get(key, tx.tx);
+        if (buffered != null) {
+          return Observable.just(buffered == WriteBuffer.TOMBSTONE ? null : mapper.map(keyBuffer, buffered));
+        }
+        if (!mightContain(keyBuffer)) {
+          return Observable.just(null);
+        }
+        if (cache != null && !tx.isUserManaged) {
+          byte[] cached = cache.get(key);
+          if (cached != null) {
+            return Observable.just(mapper.map(keyBuffer, new DirectBuffer(cached)));
+          }
+        }
         if (LMDBException.NOTFOUND != db.get(tx.tx, keyBuffer, valBuffer)) {
+          if (cache != null && !tx.isUserManaged) {
+            cache.put(key, valBuffer, tx.tx.getId());
+          }
           return Observable.just(mapper.map(keyBuffer, valBuffer));
         } else {
           return Observable.just(null);
@@ -154,35 +607,517 @@ public class RxDb {
       if (!tx.isUserManaged) {
         tx.commit();
       }
+    }).doOnUnsubscribe(() -> {
+      // subscribers like first() unsubscribe before completion
+      if (!tx.isUserManaged) {
+        tx.commit();
+      }
     });
   }
 
+  /**
+   * Get a batch of kvs with a single cursor. Keys are looked up in sorted
+   * order so that neighbouring keys are found on pages that have already
+   * been visited, and are returned in the order of the keys given.
+   * Keys that are not found are represented by KeyValue.NOT_FOUND.
+   */
+  public Observable<List<KeyValue>> multiGet(List<byte[]> keys) {
+    return Observable.defer(() -> multiGet(lmdb.internalReadTx(), KV_MAPPER, keys, KeyValue.NOT_FOUND));
+  }
+
+  /**
+   * @see RxDb#multiGet(List)
+   */
+  public Observable<List<KeyValue>> multiGet(RxTx tx, List<byte[]> keys) {
+    return multiGet(tx, KV_MAPPER, keys, KeyValue.NOT_FOUND);
+  }
+
+  /**
+   * Allow zero copy transformation of the resulting values. Keys that
+   * are not found, or that the mapper skip, are represented by notFound.
+   *
+   * @see RxDb#multiGet(List)
+   */
+  public <T> Observable<List<T>> multiGet(RxTx tx, DirectMapper<T> mapper, List<byte[]> keys, T notFound) {
+    return Observable.create(subscriber -> {
+      try {
+        List<T> result = multiGet(tx.tx, mapper, keys, notFound);
+        if (!tx.isUserManaged) {
+          tx.commit();
+        }
+        subscriber.onNext(result);
+        subscriber.onCompleted();
+      } catch (Throwable e) {
+        if (!tx.isUserManaged) {
+          tx.abort();
+        }
+        subscriber.onError(e);
+      }
+    });
+  }
+
+  private <T> List<T> multiGet(Transaction tx, DirectMapper<T> mapper, List<byte[]> keys, T notFound) {
+    List<T> result = new ArrayList<>(Collections.nCopies(keys.size(), notFound));
+    lookup(tx, keys, (index, key, value) -> result.set(index, orElse(mapper.map(key, value), notFound)));
+    return result;
+  }
+
+  /**
+   * Check which keys exist. Keys are looked up in sorted order with a single
+   * cursor like multiGet and values are never copied. Keys that the Bloom
+   * filter, if enabled, rule out are not looked up.
+   *
+   * @return bits set at the index of every key that exist.
+   */
+  public BitSet containsAll(List<byte[]> keys) {
+    try (RxTx tx = lmdb.internalReadTx()) {
+      return containsAll(tx, keys);
+    }
+  }
+
+  /**
+   * @see RxDb#containsAll(List)
+   */
+  public BitSet containsAll(RxTx tx, List<byte[]> keys) {
+    BitSet result = new BitSet(keys.size());
+    lookup(tx.tx, keys, (index, key, value) -> result.set(index));
+    return result;
+  }
+
+  /**
+   * Check which keys exist, in the order of the keys. Keys are looked up in
+   * batches with a single cursor, in a single transaction.
+   *
+   * @see RxDb#containsAll(List)
+   */
+  public Observable<Boolean> contains(Observable<byte[]> keys) {
+    return Observable.defer(() -> contains(lmdb.internalReadTx(), keys));
+  }
+
+  /**
+   * @see RxDb#contains(Observable)
+   */
+  public Observable<Boolean> contains(RxTx tx, Observable<byte[]> keys) {
+    return keys.buffer(defaultBuffer).concatMap(batch -> {
+      BitSet result = containsAll(tx, batch);
+      Boolean[] exist = new Boolean[batch.size()];
+      for (int i = 0; i < exist.length; i++) {
+        exist[i] = result.get(i);
+      }
+      return Observable.from(exist);
+    }).doOnCompleted(() -> {
+      if (!tx.isUserManaged) {
+        tx.commit();
+      }
+    }).doOnUnsubscribe(() -> {
+      if (!tx.isUserManaged) {
+        tx.commit();
+      }
+    });
+  }
+
+  /**
+   * Look up keys in sorted order on a single cursor and call found with
+   * the index of every key that exist, including buffered writes.
+   */
+  private void lookup(Transaction tx, List<byte[]> keys, Found found) {
+    Integer[] order = new Integer[keys.size()];
+    int size = 0;
+    for (int i = 0; i < keys.size(); i++) {
+      if (keys.get(i) != null) {
+        order[size++] = i;
+      }
+    }
+    Arrays.sort(order, 0, size, (i1, i2) -> WriteBuffer.compare(keys.get(i1), keys.get(i2)));
+    try (BufferCursor cursor = db.bufferCursor(tx)) {
+      boolean positioned = false;
+      boolean exhausted = false;
+      for (int i = 0; i < size; i++) {
+        int index = order[i];
+        byte[] key = keys.get(index);
+        DirectBuffer buffered = writeBuffer == null ? null : writeBuffer.get(key, tx);
+        if (buffered != null) {
+          if (buffered != WriteBuffer.TOMBSTONE) {
+            found.found(index, new DirectBuffer(key), buffered);
+          }
+          continue;
+        }
+        if (exhausted || !mightContain(key)) {
+          // every remaining key is after the last record
+          continue;
+        }
+        int cmp = positioned ? DirectBufferComparator.compareKeys(key, cursor.keyBuffer()) : 1;
+        if (cmp > 0 && positioned) {
+          // dense batches often hit the next record, which is cheaper than a seek
+          if (!cursor.next()) {
+            exhausted = true;
+            continue;
+          }
+          cmp = DirectBufferComparator.compareKeys(key, cursor.keyBuffer());
+        }
+        if (cmp > 0) {
+          cursor.keyWriteBytes(key);
+          if (!cursor.seekRange()) {
+            exhausted = true;
+            continue;
+          }
+          positioned = true;
+          cmp = DirectBufferComparator.compareKeys(key, cursor.keyBuffer());
+        }
+        if (cmp == 0) {
+          found.found(index, cursor.keyBuffer(), cursor.valBuffer());
+        }
+      }
+    }
+  }
+
+  private static <T> T orElse(T value, T other) {
+    return value == null ? other : value;
+  }
+
   public byte[] get(byte[] key) {
-    return db.get(key);
+    if (writeBuffer != null) {
+      // read before the transaction start, which then see any flush of the key
+      DirectBuffer buffered = writeBuffer.get(key);
+      if (buffered != null) {
+        return toBytes(buffered);
+      }
+    }
+    if (!mightContain(key)) {
+      return null;
+    }
+    if (cache == null) {
+      return db.get(key);
+    }
+    byte[] cached = cache.get(key);
+    if (cached != null) {
+      return cached;
+    }
+    try (RxTx tx = lmdb.internalReadTx()) {
+      DirectBuffer value = DirectKeys.value();
+      if (LMDBException.NOTFOUND == db.get(tx.tx, DirectKeys.wrap(key), value)) {
+        return null;
+      }
+      cache.put(key, value, tx.tx.getId());
+      return toBytes(value);
+    }
   }
 
   public byte[] get(RxTx tx, byte[] key) {
-    return db.get(tx.tx, key);
+    if (writeBuffer != null) {
+      DirectBuffer buffered = writeBuffer.get(key, tx.tx);
+      if (buffered != null) {
+        return toBytes(buffered);
+      }
+    }
+    DirectBuffer keyBuffer = DirectKeys.wrap(key);
+    if (!mightContain(keyBuffer)) {
+      return null;
+    }
+    DirectBuffer value = DirectKeys.value();
+    if (LMDBException.NOTFOUND == db.get(tx.tx, keyBuffer, value)) {
+      return null;
+    }
+    return toBytes(value);
+  }
+
+  /**
+   * Lookup of a single key where only what the mapper copy, like a slice
+   * or a projection of the value, reach the heap. The value cache is not
+   * used since it hold copies of whole values.
+   *
+   * @return the mapped value or null if the key is not found.
+   * @see DirectMapper#slice(int, int)
+   * @see Projection
+   */
+  public <T> T get(DirectMapper<T> mapper, byte[] key) {
+    try (RxTx tx = lmdb.internalReadTx()) {
+      return get(tx, mapper, key);
+    }
+  }
+
+  /**
+   * Zero copy lookup of a single key that does not allocate, apart from
+   * what the mapper allocate. The key is copied into direct memory that
+   * is reused by the calling thread and the buffers given to the mapper
+   * are only valid until the next lookup of the same thread.
+   *
+   * @return the mapped value or null if the key is not found.
+   */
+  public <T> T get(RxTx tx, DirectMapper<T> mapper, byte[] key) {
+    if (writeBuffer != null) {
+      DirectBuffer buffered = writeBuffer.get(key, tx.tx);
+      if (buffered != null) {
+        return buffered == WriteBuffer.TOMBSTONE ? null : mapper.map(new DirectBuffer(key), buffered);
+      }
+    }
+    return get(tx.tx, mapper, DirectKeys.wrap(key));
+  }
+
+  /**
+   * Zero copy lookup with a key in direct memory provided by the caller,
+   * like a buffer that the caller reuse between lookups.
+   *
+   * @see RxDb#get(RxTx, DirectMapper, byte[])
+   */
+  public <T> T get(RxTx tx, DirectMapper<T> mapper, DirectBuffer key) {
+    if (writeBuffer != null && !writeBuffer.isEmpty(tx.tx)) {
+      byte[] bytes = new byte[key.capacity()];
+      key.getBytes(0, bytes);
+      DirectBuffer buffered = writeBuffer.get(bytes, tx.tx);
+      if (buffered != null) {
+        return buffered == WriteBuffer.TOMBSTONE ? null : mapper.map(key, buffered);
+      }
+    }
+    return get(tx.tx, mapper, key);
+  }
+
+  private <T> T get(Transaction tx, DirectMapper<T> mapper, DirectBuffer key) {
+    if (!mightContain(key)) {
+      return null;
+    }
+    DirectBuffer value = DirectKeys.value();
+    if (LMDBException.NOTFOUND == db.get(tx, key, value)) {
+      return null;
+    }
+    return mapper.map(key, value);
+  }
+
+  /**
+   * Write buffered puts and deletes to LMDB. Buffers are also flushed
+   * when they exceed their size, before write transactions are created
+   * and before other write operations on the database.
+   *
+   * @see RxDb.Builder#writeBuffer(long, ByteUnit)
+   */
+  public void flush() {
+    if (writeBuffer != null) {
+      writeBuffer.flush(true);
+    }
+  }
+
+  /**
+   * Rebuild the Bloom filter from a parallel scan, which remove deleted
+   * keys from the filter. Keys written during the rebuild are added to
+   * both the old and the new filter.
+   *
+   * @see RxDb.Builder#bloomFilter(long)
+   */
+  public synchronized void rebuildBloomFilter() {
+    if (bloomFilter == null) {
+      throw new IllegalStateException("No bloom filter enabled for " + name);
+    }
+    BloomFilter next = new BloomFilter(bloomFilterKeys);
+    rebuilding = next;
+    try {
+      // writes in progress may have missed the new filter, wait for them to commit
+      lmdb.env.createWriteTransaction().abort();
+      KeyRange[] ranges = new KeyRange[16];
+      for (int i = 0; i < ranges.length; i++) {
+        ranges[i] = KeyRange.range(new byte[]{(byte) (i * 16)}, new byte[]{(byte) (i * 16 + 15)});
+      }
+      try (RxTx tx = lmdb.readTx()) {
+        scan(tx, (key, value) -> {
+          next.add(key);
+          return null;
+        }, ranges).toBlocking().lastOrDefault(null);
+      }
+      bloomFilter = next;
+    } finally {
+      rebuilding = null;
+    }
+  }
+
+  /**
+   * Called inside the write transaction before a key is written, read
+   * rebuilding before the filter since a rebuild swap the filter before
+   * it stop rebuilding.
+   */
+  private void addKey(KeyValue kv) {
+    if (bloomFilter != null) {
+      addKey(kv.isOffHeap() ? kv.keyBuffer() : new DirectBuffer(kv.keyBytes()));
+    }
+  }
+
+  private void addKey(byte[] key) {
+    if (bloomFilter != null) {
+      addKey(new DirectBuffer(key));
+    }
+  }
+
+  private void addKey(DirectBuffer key) {
+    BloomFilter next = rebuilding;
+    bloomFilter.add(key);
+    if (next != null) {
+      next.add(key);
+    }
+  }
+
+  private boolean mightContain(byte[] key) {
+    BloomFilter filter = bloomFilter;
+    return filter == null || filter.mightContain(key);
+  }
+
+  private boolean mightContain(DirectBuffer key) {
+    BloomFilter filter = bloomFilter;
+    return filter == null || filter.mightContain(key);
+  }
+
+  /**
+   * @see RxDb.Builder#cache(long, ByteUnit)
+   */
+  public CacheMetrics cacheMetrics() {
+    if (cache == null) {
+      throw new IllegalStateException("No cache enabled for " + name);
+    }
+    return cache.metrics();
+  }
+
+  private Path bloomFilterPath() {
+    return lmdb.getPath().resolve(name + ".bloom");
+  }
+
+  private static byte[] toBytes(DirectBuffer buffered) {
+    if (buffered == WriteBuffer.TOMBSTONE) {
+      return null;
+    }
+    byte[] value = new byte[buffered.capacity()];
+    buffered.getBytes(0, value);
+    return value;
+  }
+
+  /**
+   * Writer thread for operations that write LMDB directly, buffered writes
+   * are flushed first to keep them in order.
+   */
+  private LmdbWriter writer() {
+    flush();
+    return lmdb.writer();
+  }
+
+  private Transaction writeTransaction() {
+    flush();
+    return lmdb.env.createWriteTransaction();
   }
 
   /**
    * @see RxDb#delete(RxTx)
    */
   public void delete() {
-    delete(lmdb.internalWriteTx());
+    truncate();
   }
 
   /**
    * Delete all records
+   *
+   * @see RxDb#truncate(RxTx)
    */
   public void delete(RxTx tx) {
-    // non-blocking needed?
-    scan(tx).toBlocking().forEach(keyValues -> {
-      Observable<byte[]> keys = keyValues.stream()
-        .map(kv -> Observable.just(kv.key()))
-        .reduce(Observable.empty(), (o1, o2) -> o1.mergeWith(o2));
-      delete(tx, keys);
-    });
+    truncate(tx);
+  }
+
+  /**
+   * Delete all records in a single transaction by dropping the content
+   * of the database, which free its pages without visiting every record.
+   */
+  public void truncate() {
+    try (Transaction tx = writeTransaction()) {
+      truncate(tx);
+      tx.commit();
+    }
+  }
+
+  public void truncate(RxTx tx) {
+    truncate(tx.tx);
+  }
+
+  private void truncate(Transaction tx) {
+    if (cache != null) {
+      cache.invalidateAll(tx.getId());
+    }
+    db.drop(tx, false);
+    if (expiry != null) {
+      expiry.truncate(tx);
+    }
+  }
+
+  /**
+   * Delete all records within the range in a single transaction. The
+   * direction of the range does not matter.
+   *
+   * @return number of deleted records.
+   */
+  public long delete(KeyRange range) {
+    try (Transaction tx = writeTransaction()) {
+      long deleted = delete(tx, range, Long.MAX_VALUE);
+      tx.commit();
+      return deleted;
+    }
+  }
+
+  /**
+   * Delete records within the range in transactions of at most chunkSize
+   * records so that other writers are not blocked while deleting large
+   * ranges. Chunks that have been committed stay deleted if a later chunk
+   * fail.
+   *
+   * @return number of deleted records.
+   */
+  public long delete(KeyRange range, int chunkSize) {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("chunkSize must be positive");
+    }
+    long total = 0;
+    while (true) {
+      try (Transaction tx = writeTransaction()) {
+        long deleted = delete(tx, range, chunkSize);
+        tx.commit();
+        total += deleted;
+        if (deleted < chunkSize) {
+          return total;
+        }
+      }
+    }
+  }
+
+  public long delete(RxTx tx, KeyRange range) {
+    return delete(tx.tx, range, Long.MAX_VALUE);
+  }
+
+  /**
+   * Walk a single cursor from the lower bound and delete in place until
+   * the upper bound or limit is reached. Deleted records are gone, so the
+   * next chunk start from the lower bound again.
+   */
+  private long delete(Transaction tx, KeyRange range, long limit) {
+    byte[] lower = range.lower();
+    DirectBuffer upper = range.upper() == null ? null : new DirectBuffer(range.upper());
+    long deleted = 0;
+    try (BufferCursor cursor = db.bufferCursor(tx)) {
+      boolean hasNext;
+      if (lower == null) {
+        hasNext = cursor.first();
+      } else {
+        cursor.keyWriteBytes(lower);
+        hasNext = cursor.seekRange();
+      }
+      while (hasNext && deleted < limit
+        && (upper == null || DirectBufferComparator.compareTo(cursor.keyBuffer(), upper) <= 0)) {
+        if (cache != null || expiry != null) {
+          // only deleted keys are invalidated, the rest of the cache stay warm
+          byte[] key = cursor.keyBytes();
+          invalidate(tx, key);
+          if (expiry != null) {
+            expiry.clear(tx, key);
+          }
+        }
+        cursor.delete();
+        deleted++;
+        // the cursor is positioned on the record after the deleted one
+        hasNext = cursor.next();
+      }
+    }
+    return deleted;
   }
 
   /**
@@ -204,11 +1139,35 @@ public class RxDb {
   }
 
   public boolean delete(byte[] key) {
+    if (writeBuffer != null) {
+      boolean existed = get(key) != null;
+      writeBuffer.delete(key);
+      return existed;
+    }
+    if (lmdb.groupCommit) {
+      return deleteAsync(key).toBlocking().first();
+    }
+    if (cache != null || expiry != null) {
+      try (Transaction tx = writeTransaction()) {
+        boolean deleted = delete(tx, key);
+        tx.commit();
+        return deleted;
+      }
+    }
     return db.delete(key);
   }
 
+  /**
+   * Delete a key through the writer thread.
+   *
+   * @see RxDb#putAsync(KeyValue)
+   */
+  public Observable<Boolean> deleteAsync(byte[] key) {
+    return writer().delete(this, key);
+  }
+
   public boolean delete(RxTx tx, byte[] key) {
-    return db.delete(tx.tx, key);
+    return delete(tx.tx, key);
   }
 
   /**
@@ -251,10 +1210,14 @@ public class RxDb {
   }
 
   public <T> Observable<List<T>> scan(int buffer, RxTx tx, DirectMapper<T> mapper, KeyRange... ranges) {
-    return Scanners.scan(db, tx, mapper, scheduler, buffer, ranges);
+    return Scanners.scan(db, writeBuffer, tx, mapper, scheduler, buffer, ranges);
   }
 
+  /**
+   * Cursors do not see buffered writes, which are flushed first.
+   */
   public <T> Observable<List<T>> cursor(CursorScanner<T> scanner) {
+    flush();
     return cursor(defaultBuffer, lmdb.internalReadTx(), scanner);
   }
 
@@ -263,6 +1226,7 @@ public class RxDb {
   }
 
   public <T> Observable<List<T>> cursor(int buffer, CursorScanner<T> scanner) {
+    flush();
     return cursor(buffer, lmdb.internalReadTx(), scanner);
   }
 
@@ -287,12 +1251,32 @@ public class RxDb {
   }
 
   public void close() {
+    if (writeBuffer != null) {
+      writeBuffer.close();
+      lmdb.writeBuffers.remove(writeBuffer);
+    }
+    if (expiry != null) {
+      lmdb.sweeper().unregister(expiry);
+      expiry.close();
+    }
     db.close();
+    if (bloomFilter != null) {
+      try {
+        bloomFilter.save(bloomFilterPath(), lmdb.env.info().getLastTxnId());
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
   }
 
   public static class Builder {
     private String name;
     private RxLmdb lmdb;
+    private MergeOperator mergeOperator;
+    private boolean ttl;
+    private long writeBufferSize;
+    private long bloomFilterKeys;
+    private long cacheSize;
 
     public Builder lmdb(RxLmdb lmdb) {
       this.lmdb = lmdb;
@@ -304,20 +1288,99 @@ public class RxDb {
       return this;
     }
 
+    /**
+     * Operator used to merge deltas into values.
+     *
+     * @see RxDb#merge(Observable)
+     */
+    public Builder mergeOperator(MergeOperator mergeOperator) {
+      this.mergeOperator = mergeOperator;
+      return this;
+    }
+
+    /**
+     * Enable per key TTL. Expiry times are kept in the companion databases
+     * [name].ttl and [name].expiry, so maxDbs must leave room for them.
+     *
+     * @see RxDb#put(KeyValue, long, TimeUnit)
+     */
+    public Builder ttl() {
+      this.ttl = true;
+      return this;
+    }
+
+    /**
+     * Buffer puts and deletes in memory and flush them to LMDB in key order
+     * once the buffered keys and values exceed the size. Only put(KeyValue)
+     * and delete(byte[]) are buffered, and reads see buffered writes.
+     * <p/>
+     * Buffered writes are lost if the process crash before they are flushed.
+     * Flushing happen on the thread that exceed the size, so buffered writes
+     * must not be made while holding a write transaction.
+     *
+     * @see RxDb#flush()
+     */
+    public Builder writeBuffer(long size, ByteUnit unit) {
+      this.writeBufferSize = unit.toBytes(size);
+      return this;
+    }
+
+    /**
+     * Keep a Bloom filter of the keys so that gets of keys that do not exist
+     * are answered without searching LMDB. The filter use 10 bits per
+     * expected key off heap and about 1% of the gets of missing keys still
+     * search LMDB, more if the database hold more keys than expected.
+     * <p/>
+     * The filter is saved next to the environment when the database is
+     * closed and loaded when it is opened, unless any transaction has been
+     * committed since, in which case it is rebuilt with a parallel scan.
+     * Keys written through user cursors are not added to the filter.
+     *
+     * @see RxDb#rebuildBloomFilter()
+     */
+    public Builder bloomFilter(long expectedKeys) {
+      this.bloomFilterKeys = expectedKeys;
+      return this;
+    }
+
+    /**
+     * Cache values of frequently read keys off heap in front of get, with
+     * W-TinyLFU admission and eviction. The size bound the memory of the
+     * cached values and values larger than 64 KiB are not cached.
+     * <p/>
+     * Only gets outside of user transactions use the cache, since user
+     * transactions see their own snapshot and writes. Writes remove keys
+     * from the cache within their transaction. Keys written through user
+     * cursors are not removed from the cache.
+     *
+     * @see RxDb#cacheMetrics()
+     */
+    public Builder cache(long size, ByteUnit unit) {
+      this.cacheSize = unit.toBytes(size);
+      return this;
+    }
+
     public RxDb build() {
       return new RxDb(this);
     }
   }
 
+  /**
+   * @see RxDb#lookup(Transaction, List, Found)
+   */
+  private interface Found {
+    void found(int index, DirectBuffer key, DirectBuffer value);
+  }
+
   private static class PutSubscriber extends Subscriber<KeyValue> implements Loggable {
     final RxTx tx;
-    final Database db;
+    final RxDb db;
     final boolean append;
     final PublishSubject<Boolean> result;
 
     private PutSubscriber(RxDb db, RxTx tx, boolean append) {
       this.tx = tx;
-      this.db = db.db;
+      this.db = db;
       this.append = append;
       this.result = PublishSubject.create();
     }
@@ -340,7 +1403,7 @@ public class RxDb {
     @Override
     public void onNext(KeyValue kv) {
       try {
-        db.put(tx.tx, kv.key(), kv.value(), append ? Constants.APPEND : 0);
+        write(kv);
         result.onNext(true);
       } catch (Throwable e) {
         if (e instanceof RuntimeException) {
@@ -349,56 +1412,59 @@ public class RxDb {
         throw new OnErrorFailedException(e);
       }
     }
-  }
-
-  private static class BatchSubscriber extends Subscriber<List<KeyValue>> implements Loggable {
-    final Database db;
-    final Env env;
 
-    private BatchSubscriber(RxDb db) {
-      this.env = db.lmdb.env;
-      this.db = db.db;
+    void write(KeyValue kv) {
+      db.write(tx.tx, kv, append ? Constants.APPEND : 0);
     }
+  }
 
-    @Override
-    public void onCompleted() {
-    }
+  private static class LoadSubscriber extends PutSubscriber {
+    /** copy of the highest key in the database, since kv buffers may be reused */
+    private DirectBuffer last = new DirectBuffer(ByteBuffer.allocateDirect(64));
+    /** length of the highest key, -1 if the database is empty */
+    private int lastLength = -1;
+    private boolean started;
 
-    @Override
-    public void onError(Throwable e) {
-      logger().error("Batch error.", e);
+    private LoadSubscriber(RxDb db, RxTx tx) {
+      super(db, tx, false);
     }
 
     @Override
-    public void onNext(List<KeyValue> kvs) {
-      try {
-        if (kvs.size() < 1) {
-          return;
-        }
-        try (Transaction tx = env.createWriteTransaction()) {
-          for (KeyValue kv : kvs) {
-            try {
-              db.put(tx, kv.key(), kv.value(), 0);
-            } catch (Throwable e) {
-              // log error, swallow exception and proceed to next kv
-              logger().error("Batch put error.", e);
-            }
+    void write(KeyValue kv) {
+      if (!started) {
+        started = true;
+        try (BufferCursor cursor = db.db.bufferCursor(tx.tx)) {
+          if (cursor.last()) {
+            remember(cursor.keyBuffer());
           }
-          tx.commit();
         }
-      } catch (Throwable e) {
-        throw new OnErrorFailedException(e);
       }
+      DirectBuffer key = kv.keyBuffer() != null ? kv.keyBuffer() : new DirectBuffer(kv.key());
+      if (lastLength < 0 || DirectBufferComparator.compareTo(key, 0, key.capacity(), last, 0, lastLength) > 0) {
+        db.write(tx.tx, kv, Constants.APPEND);
+        remember(key);
+      } else {
+        db.write(tx.tx, kv, 0);
+      }
+    }
+
+    private void remember(DirectBuffer key) {
+      int length = key.capacity();
+      if (length > last.capacity()) {
+        last = new DirectBuffer(ByteBuffer.allocateDirect(Math.max(length, last.capacity() * 2)));
+      }
+      last.putBytes(0, key, 0, length);
+      lastLength = length;
     }
   }
 
   private static class DeleteSubscriber extends Subscriber<byte[]> implements Loggable {
     final RxTx tx;
-    final Database db;
+    final RxDb db;
 
     private DeleteSubscriber(RxDb db, RxTx tx) {
       this.tx = tx;
-      this.db = db.db;
+      this.db = db;
     }
 
     @Override
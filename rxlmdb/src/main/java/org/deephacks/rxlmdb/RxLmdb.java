@@ -14,18 +14,39 @@
 package org.deephacks.rxlmdb;
 
 import org.fusesource.lmdbjni.*;
+import rx.Observable;
 import rx.Scheduler;
 import rx.schedulers.Schedulers;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 public class RxLmdb {
   final Env env;
   final Path path;
   final Scheduler scheduler;
   final int flags;
+  final boolean groupCommit;
+  final int writeBufferSize;
+  final int writeBatchSize;
+  final WaitStrategy waitStrategy;
+  final boolean failFast;
+  final long targetLatencyNanos;
+  final boolean coalesceWrites;
+  final long syncIntervalNanos;
+  final long syncThresholdBytes;
+  final long sweepIntervalMillis;
+  final int sweepChunkSize;
+  private LmdbWriter writer;
+  private ExpirySweeper sweeper;
+  final ReadTxPool readTxPool;
+  final ReaderMonitor readerMonitor;
+  /** write buffers of open databases */
+  final List<WriteBuffer> writeBuffers = new CopyOnWriteArrayList<>();
 
   private RxLmdb(Builder builder) {
     this.env = new Env();
@@ -36,10 +57,26 @@ public class RxLmdb {
     Optional.ofNullable(builder.maxReaders)
       .ifPresent(size -> this.env.setMaxReaders(builder.maxReaders));
     this.flags = builder.flags;
+    this.groupCommit = builder.groupCommit;
+    this.writeBufferSize = builder.writeBufferSize;
+    this.writeBatchSize = builder.writeBatchSize;
+    this.waitStrategy = builder.waitStrategy;
+    this.failFast = builder.failFast;
+    this.targetLatencyNanos = builder.targetLatencyNanos;
+    this.coalesceWrites = builder.coalesceWrites;
+    this.syncIntervalNanos = builder.syncIntervalNanos;
+    this.syncThresholdBytes = builder.syncThresholdBytes;
+    this.sweepIntervalMillis = builder.sweepIntervalMillis;
+    this.sweepChunkSize = builder.sweepChunkSize;
     this.path = IoUtil.createPathOrTemp(builder.path);
 
     // never tie transactions to threads since it breaks parallel range scans
     this.env.open(path.toString(), Constants.NOTLS | builder.flags);
+    this.readTxPool = builder.readTxPoolSize > 0 ? new ReadTxPool(env, builder.readTxPoolSize) : null;
+    this.readerMonitor = new ReaderMonitor(env, builder.readerCheckIntervalMillis, builder.maxReaderAgeNanos);
+    if (builder.readerCheck || readerMonitor.isTracking()) {
+      readerMonitor.start();
+    }
     this.scheduler = Optional.ofNullable(builder.scheduler)
       .orElse(Schedulers.io());
   }
@@ -79,25 +116,171 @@ public class RxLmdb {
   }
 
   public void close() {
+    // flush and stop background flushes before the environment is closed
+    writeBuffers.forEach(WriteBuffer::close);
+    synchronized (this) {
+      if (sweeper != null) {
+        sweeper.close();
+      }
+      if (writer != null) {
+        writer.close();
+      }
+      readerMonitor.close();
+      if (readTxPool != null) {
+        readTxPool.close();
+      }
+    }
     env.close();
   }
 
   public RxTx writeTx() {
+    flushWriteBuffers();
     return new RxTx(env.createWriteTransaction(), true);
   }
 
+  /**
+   * Read transactions are taken from a pool and given back when they are
+   * committed, aborted or closed.
+   */
   public RxTx readTx() {
-    return new RxTx(env.createReadTransaction(), true);
+    return readTx(true);
   }
 
   RxTx internalReadTx() {
-    return new RxTx(env.createReadTransaction(), false);
+    return readTx(false);
+  }
+
+  private RxTx readTx(boolean isUserManaged) {
+    ReaderMonitor monitor = readerMonitor.isTracking() ? readerMonitor : null;
+    if (readTxPool == null) {
+      return new RxTx(env.createReadTransaction(), isUserManaged, null, monitor);
+    }
+    return new RxTx(readTxPool.acquire(), isUserManaged, readTxPool, monitor);
+  }
+
+  /**
+   * Read transaction leased for a limited time, which is ended by a
+   * background check if the lease is not renewed in time.
+   */
+  public Snapshot snapshot(long lease, TimeUnit unit) {
+    return new Snapshot(readerMonitor, readTx(true), unit.toNanos(lease));
+  }
+
+  /**
+   * Open read transactions with their owner and age, only tracked if
+   * a max reader age is set.
+   *
+   * @see RxLmdb.Builder#maxReaderAge(long, TimeUnit)
+   */
+  public List<RxTx> getReaders() {
+    return readerMonitor.readers();
+  }
+
+  /**
+   * Mark snapshots with expired leases, report old readers and clear reader
+   * slots of dead processes now instead of waiting for the background check.
+   *
+   * @return number of cleared reader slots.
+   */
+  public int readerCheck() {
+    return readerMonitor.check();
   }
 
   RxTx internalWriteTx() {
+    flushWriteBuffers();
     return new RxTx(env.createWriteTransaction(), false);
   }
 
+  /**
+   * Write transactions may write any database, buffered writes are
+   * flushed first to keep them in order.
+   */
+  void flushWriteBuffers() {
+    for (WriteBuffer writeBuffer : writeBuffers) {
+      writeBuffer.flush(true);
+    }
+  }
+
+  /**
+   * Background sweeper of expired keys, started by the first database
+   * that enable TTL.
+   */
+  synchronized ExpirySweeper sweeper() {
+    if (sweeper == null) {
+      sweeper = new ExpirySweeper(sweepIntervalMillis, sweepChunkSize);
+    }
+    return sweeper;
+  }
+
+  /**
+   * The writer thread is started lazily when first needed.
+   */
+  synchronized LmdbWriter writer() {
+    if (writer == null) {
+      AdaptiveBatching batching = targetLatencyNanos > 0
+        ? AdaptiveBatching.adaptive(targetLatencyNanos, writeBatchSize)
+        : AdaptiveBatching.fixed(writeBatchSize);
+      writer = new LmdbWriter(this, batching, writeBufferSize, waitStrategy, failFast, coalesceWrites);
+    }
+    return writer;
+  }
+
+  /**
+   * Write kvs to many databases in the same environment atomically. Each list
+   * is handed over to the writer thread and written in a single transaction,
+   * either all kvs in the list are committed or none, in which case all keys
+   * are reported as failed. Useful for keeping a table and its index tables
+   * consistent with one commit.
+   *
+   * @see RxDb#batch(Observable)
+   */
+  public Observable<BatchResult> batch(Observable<List<DbKeyValue>> values) {
+    LmdbWriter writer = writer();
+    BatchSubscriber<DbKeyValue> subscriber = new BatchSubscriber<>((entries, ack) -> {
+      // buffered writes to the same keys must not be flushed after the batch
+      flushWriteBuffers();
+      writer.atomic(entries, ack);
+    }, entry -> entry.kv().keyBytes());
+    values.subscribe(subscriber);
+    return subscriber.result;
+  }
+
+  /**
+   * Sequence of the last transaction committed by the writer thread.
+   *
+   * @see BatchResult#getSequence()
+   */
+  public long commitSequence() {
+    return writer().sequence;
+  }
+
+  /**
+   * Watermark of the last durable commit sequence of the writer thread.
+   * Emit the current watermark on subscribe and every time it advance.
+   * Commits are durable immediately unless the environment is opened with
+   * noSync, noMetaSync or mapAsync, in which case they become durable when
+   * the background sync flush the environment.
+   */
+  public Observable<Long> durableSequence() {
+    return writer().durability.watermarks();
+  }
+
+  /**
+   * Emit once the commit with the sequence, and every commit before it, is
+   * durable. Request a background flush if needed, which let writers run
+   * without sync and only wait for durability when they need it.
+   */
+  public Observable<Long> awaitDurable(long sequence) {
+    return writer().durability.await(sequence);
+  }
+
+  /**
+   * Current batch settings and statistics of the writer thread.
+   */
+  public WriterMetrics writerMetrics() {
+    return writer().batching.metrics();
+  }
+
   public RxDb.Builder dbBuilder() {
     return RxDb.builder().lmdb(this);
   }
@@ -109,6 +292,21 @@ public class RxLmdb {
     private int flags;
     private Long maxDbs;
     private Long maxReaders;
+    private int readTxPoolSize;
+    private boolean readerCheck;
+    private long readerCheckIntervalMillis = ReaderMonitor.DEFAULT_INTERVAL_MILLIS;
+    private long maxReaderAgeNanos;
+    private boolean groupCommit;
+    private int writeBufferSize = LmdbWriter.DEFAULT_BUFFER_SIZE;
+    private int writeBatchSize = LmdbWriter.DEFAULT_MAX_BATCH;
+    private WaitStrategy waitStrategy = WaitStrategy.PARK;
+    private boolean failFast;
+    private long targetLatencyNanos;
+    private boolean coalesceWrites;
+    private long syncIntervalNanos;
+    private long syncThresholdBytes;
+    private long sweepIntervalMillis = ExpirySweeper.DEFAULT_INTERVAL_MILLIS;
+    private int sweepChunkSize = ExpirySweeper.DEFAULT_CHUNK_SIZE;
 
     public Builder path(String path) {
       this.path = Paths.get(path);
@@ -190,6 +388,137 @@ public class RxLmdb {
       return this;
     }
 
+    /**
+     * Number of ended read transactions that are kept to be renewed instead
+     * of creating new ones, at most half of maxReaders. Pooled transactions
+     * hold on to their reader slots while idle, so the pool is disabled by
+     * default.
+     */
+    public Builder readTxPool(int size) {
+      readTxPoolSize = size;
+      return this;
+    }
+
+    /**
+     * Periodically clear reader slots left behind by processes that died
+     * and mark snapshots with expired leases. Checks otherwise only start
+     * with the first snapshot, at an interval of one second.
+     */
+    public Builder readerCheck(long interval, TimeUnit unit) {
+      this.readerCheck = true;
+      this.readerCheckIntervalMillis = Math.max(1, unit.toMillis(interval));
+      return this;
+    }
+
+    /**
+     * Track every read transaction and report those that are open for
+     * longer than the age, since old readers make the database grow.
+     */
+    public Builder maxReaderAge(long age, TimeUnit unit) {
+      this.maxReaderAgeNanos = unit.toNanos(age);
+      return this;
+    }
+
+    /**
+     * Route single puts and deletes through a dedicated writer thread that
+     * commit concurrent writes in a single transaction. Callers still block
+     * until their write has been committed.
+     */
+    public Builder groupCommit() {
+      groupCommit = true;
+      return this;
+    }
+
+    /**
+     * Number of pre-allocated entries in the ring buffer of the writer thread,
+     * rounded up to the nearest power of two.
+     */
+    public Builder writeBufferSize(int size) {
+      writeBufferSize = size;
+      return this;
+    }
+
+    /**
+     * Max number of buffer entries the writer thread write in one transaction.
+     */
+    public Builder writeBatchSize(int size) {
+      writeBatchSize = size;
+      return this;
+    }
+
+    /**
+     * How the writer thread wait for writes and producers wait for a full buffer.
+     */
+    public Builder waitStrategy(WaitStrategy waitStrategy) {
+      this.waitStrategy = waitStrategy;
+      return this;
+    }
+
+    /**
+     * Fail with RejectedExecutionException instead of blocking when
+     * the write buffer is full.
+     */
+    public Builder failFast() {
+      failFast = true;
+      return this;
+    }
+
+    /**
+     * Let the writer thread adapt batch size and linger time to keep
+     * commit latency close to a target latency. The write batch size
+     * is used as upper bound of the batch size.
+     */
+    public Builder adaptiveBatching(long targetLatency, TimeUnit unit) {
+      targetLatencyNanos = unit.toNanos(targetLatency);
+      return this;
+    }
+
+    /**
+     * Let the writer thread only write the last put or delete of each key
+     * among the writes committed in the same transaction, sorted in key
+     * order. Pays off when the same keys are rewritten often.
+     */
+    public Builder coalesceWrites() {
+      coalesceWrites = true;
+      return this;
+    }
+
+    /**
+     * Flush the environment in the background at a fixed interval, used
+     * together with noSync, noMetaSync or mapAsync.
+     *
+     * @see RxLmdb#durableSequence()
+     */
+    public Builder syncInterval(long interval, TimeUnit unit) {
+      syncIntervalNanos = unit.toNanos(interval);
+      return this;
+    }
+
+    /**
+     * Flush the environment in the background when the writer thread have
+     * written this many key and value bytes since the last flush, used
+     * together with noSync, noMetaSync or mapAsync.
+     *
+     * @see RxLmdb#durableSequence()
+     */
+    public Builder syncThreshold(long size, ByteUnit unit) {
+      syncThresholdBytes = unit.toBytes(size);
+      return this;
+    }
+
+    /**
+     * How often expired keys are deleted and the max number of expired keys
+     * deleted per write transaction, for databases that enable TTL.
+     */
+    public Builder expirySweep(long interval, TimeUnit unit, int chunkSize) {
+      if (interval < 1 || chunkSize < 1) {
+        throw new IllegalArgumentException("interval and chunkSize must be positive");
+      }
+      this.sweepIntervalMillis = Math.max(1, unit.toMillis(interval));
+      this.sweepChunkSize = chunkSize;
+      return this;
+    }
+
     public RxLmdb build() {
       return new RxLmdb(this);
     }
@@ -17,27 +17,101 @@ package org.deephacks.rxlmdb;
 import org.fusesource.lmdbjni.Transaction;
 
 import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
 
 public class RxTx implements Closeable {
   final Transaction tx;
   /** user managed transactions are closed by user */
   final boolean isUserManaged;
+  /** pool that read transactions are returned to, null if not pooled */
+  private final ReadTxPool pool;
+  /** monitor that track read transactions, null if not tracked */
+  private final ReaderMonitor monitor;
+  private final String owner;
+  private final long startNanos;
+  /** reported by the monitor for being too old */
+  boolean reported;
+  private boolean released;
 
   RxTx(Transaction tx, boolean isUserManaged) {
+    this(tx, isUserManaged, null, null);
+  }
+
+  RxTx(Transaction tx, boolean isUserManaged, ReadTxPool pool, ReaderMonitor monitor) {
     this.tx = tx;
     this.isUserManaged = isUserManaged;
+    this.pool = pool;
+    this.monitor = monitor;
+    this.owner = Thread.currentThread().getName();
+    this.startNanos = System.nanoTime();
+    if (monitor != null) {
+      monitor.register(this);
+    }
   }
 
   public void abort() {
-    tx.abort();
+    if (pool != null || monitor != null) {
+      release();
+    } else {
+      tx.abort();
+    }
   }
 
   public void commit() {
-    tx.commit();
+    if (pool != null || monitor != null) {
+      release();
+    } else {
+      tx.commit();
+    }
   }
 
   public void close() {
-    tx.close();
+    if (pool != null || monitor != null) {
+      release();
+    } else {
+      tx.close();
+    }
+  }
+
+  /**
+   * @return name of the thread that created the transaction.
+   */
+  public String getOwner() {
+    return owner;
+  }
+
+  public long getAge(TimeUnit unit) {
+    return unit.convert(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
   }
 
+  /**
+   * End the transaction without giving it back to the pool, for
+   * transactions that may still be used by their owner. Later use fail
+   * instead of reading the snapshot of another reader.
+   */
+  void discard() {
+    release(false);
+  }
+
+  private void release() {
+    release(true);
+  }
+
+  /**
+   * Read transactions may be ended more than once, but must only be given
+   * back to the pool once since it may be handed out again.
+   */
+  private synchronized void release(boolean reuse) {
+    if (!released) {
+      released = true;
+      if (monitor != null) {
+        monitor.unregister(this);
+      }
+      if (pool != null && reuse) {
+        pool.release(tx);
+      } else {
+        tx.abort();
+      }
+    }
+  }
 }
@@ -8,30 +8,34 @@ import rx.Scheduler;
 import rx.Subscriber;
 
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 
 import static org.deephacks.rxlmdb.DirectBufferComparator.compareTo;
 
 class Scanners {
 
   static final <T> Observable<List<T>> scan(Database db,
+                                            WriteBuffer writeBuffer,
                                             RxTx tx,
                                             DirectMapper<T> mapper,
                                             Scheduler scheduler,
                                             int buffer,
                                             KeyRange... ranges) {
     if (ranges.length == 0) {
-      Scanner<T> scanner = getScanner(db, tx, mapper, KeyRange.forward());
+      Scanner<T> scanner = getScanner(db, writeBuffer, tx, mapper, KeyRange.forward());
       return createObservable(scanner, tx).buffer(buffer);
     } else if (ranges.length == 1) {
-      Scanner<T> scanner = getScanner(db, tx, mapper, ranges[0]);
+      Scanner<T> scanner = getScanner(db, writeBuffer, tx, mapper, ranges[0]);
       return createObservable(scanner, tx).buffer(buffer);
     }
     if (!tx.isUserManaged) {
       throw new IllegalArgumentException("Parallel scan transactions must be handled by the user");
     }
     return Arrays.asList(ranges).stream()
-      .map(range -> createObservable(getScanner(db, tx, mapper, range), tx)
+      .map(range -> createObservable(getScanner(db, writeBuffer, tx, mapper, range), tx)
         .buffer(buffer).subscribeOn(scheduler).onBackpressureBuffer())
       .reduce(Observable.empty(), (o1, o2) -> o1.mergeWith(o2));
   }
@@ -40,6 +44,12 @@ class Scanners {
     return createObservable(new CursorScan(db, tx, null, null, scanner), tx).buffer(buffer);
   }
 
+  private static final <T> Scanner<T> getScanner(Database db, WriteBuffer writeBuffer, RxTx tx, DirectMapper<T> mapper, KeyRange range) {
+    if (writeBuffer == null || writeBuffer.isEmpty(tx.tx)) {
+      return getScanner(db, tx, mapper, range);
+    }
+    return new BufferedScan<>(db, tx, mapper, range, writeBuffer.snapshot(tx.tx));
+  }
 
   private static final <T> Scanner<T> getScanner(Database db, RxTx tx, DirectMapper<T> mapper, KeyRange range) {
     switch (range.type) {
@@ -311,6 +321,97 @@ class Scanners {
     }
   }
 
+  /**
+   * Merge buffered writes into a scan. Buffered entries within the range
+   * are emitted before the LMDB entries that follow them in scan order,
+   * replace LMDB entries with the same key and hide them if deleted.
+   */
+  static class BufferedScan<T> extends Scanner<T> {
+    private final Scanner<T> scanner;
+    private final boolean backward;
+    private final Iterator<Map.Entry<byte[], DirectBuffer>> buffered;
+    private Map.Entry<byte[], DirectBuffer> next;
+    private Subscriber<? super T> subscriber;
+
+    protected BufferedScan(Database db, RxTx tx, DirectMapper<T> mapper, KeyRange range,
+                           NavigableMap<byte[], DirectBuffer> snapshot) {
+      super(db, tx, mapper, range);
+      this.scanner = getScanner(db, tx, this::merge, range);
+      this.backward = range.type.name().startsWith("BACKWARD");
+      this.buffered = (backward ? snapshot.descendingMap() : snapshot).entrySet().stream()
+        .filter(entry -> within(entry.getKey()))
+        .iterator();
+      this.next = buffered.hasNext() ? buffered.next() : null;
+    }
+
+    @Override
+    public void execute(Subscriber<? super T> subscriber) {
+      this.subscriber = subscriber;
+      scanner.execute(subscriber);
+      while (next != null && !subscriber.isUnsubscribed()) {
+        emit(take());
+      }
+    }
+
+    /**
+     * Called for each LMDB entry of the scan, always return null and emit
+     * the entries itself to interleave buffered entries.
+     */
+    private T merge(DirectBuffer key, DirectBuffer value) {
+      while (next != null) {
+        byte[] bufferedKey = next.getKey();
+        int cmp = compareTo(new DirectBuffer(bufferedKey), 0, bufferedKey.length, key, 0, key.capacity());
+        if ((backward ? -cmp : cmp) > 0) {
+          break;
+        }
+        emit(take());
+        if (cmp == 0) {
+          return null;
+        }
+      }
+      T result = mapper.map(key, value);
+      if (result != null && !subscriber.isUnsubscribed()) {
+        subscriber.onNext(result);
+      }
+      return null;
+    }
+
+    private Map.Entry<byte[], DirectBuffer> take() {
+      Map.Entry<byte[], DirectBuffer> entry = next;
+      next = buffered.hasNext() ? buffered.next() : null;
+      return entry;
+    }
+
+    private void emit(Map.Entry<byte[], DirectBuffer> entry) {
+      if (entry.getValue() == WriteBuffer.TOMBSTONE || subscriber.isUnsubscribed()) {
+        return;
+      }
+      T result = mapper.map(new DirectBuffer(entry.getKey()), entry.getValue());
+      if (result != null) {
+        subscriber.onNext(result);
+      }
+    }
+
+    private boolean within(byte[] key) {
+      switch (range.type) {
+        case FORWARD_START:
+          return WriteBuffer.compare(key, range.start) >= 0;
+        case FORWARD_STOP:
+          return compareTo(key, range.stop) <= 0;
+        case FOWARD_RANGE:
+          return WriteBuffer.compare(key, range.start) >= 0 && compareTo(key, range.stop) <= 0;
+        case BACKWARD_START:
+          return WriteBuffer.compare(key, range.start) <= 0;
+        case BACKWARD_STOP:
+          return compareTo(key, range.stop) >= 0;
+        case BACKWARD_RANGE:
+          return WriteBuffer.compare(key, range.start) <= 0 && compareTo(key, range.stop) >= 0;
+        default:
+          return true;
+      }
+    }
+  }
+
   static class CursorScan<T> extends Scanner<T> {
     private final CursorScanner<T> scanner;
 
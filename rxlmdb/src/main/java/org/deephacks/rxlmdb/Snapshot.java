@@ -0,0 +1,119 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A read transaction leased for a limited time. Pages that a snapshot can
+ * see are never reused, so a snapshot that is kept for too long make the
+ * database grow under write load. The owner renew the lease as long as
+ * the snapshot is needed and the reader monitor mark snapshots with expired
+ * leases, after which tx() throws. The monitor never touch the transaction
+ * itself since the owner may be reading from it concurrently, the owner
+ * must close the snapshot, which abort the transaction of an expired
+ * snapshot instead of giving it back to the pool.
+ *
+ * @see RxLmdb#snapshot(long, TimeUnit)
+ */
+public final class Snapshot implements Closeable {
+  private final ReaderMonitor monitor;
+  private final RxTx tx;
+  private volatile long deadlineNanos;
+  private volatile boolean expired;
+  private boolean ended;
+
+  Snapshot(ReaderMonitor monitor, RxTx tx, long leaseNanos) {
+    this.monitor = monitor;
+    this.tx = tx;
+    this.deadlineNanos = System.nanoTime() + leaseNanos;
+    monitor.register(this);
+  }
+
+  /**
+   * @throws IllegalStateException if the lease has expired or the snapshot is closed.
+   */
+  public RxTx tx() {
+    if (isExpired()) {
+      throw new IllegalStateException("Snapshot lease expired or closed.");
+    }
+    return tx;
+  }
+
+  /**
+   * Extend the lease to expire the given time from now.
+   *
+   * @throws IllegalStateException if the lease has already expired.
+   */
+  public void renew(long lease, TimeUnit unit) {
+    tx();
+    deadlineNanos = System.nanoTime() + unit.toNanos(lease);
+  }
+
+  public synchronized boolean isExpired() {
+    return ended || expired || System.nanoTime() - deadlineNanos >= 0;
+  }
+
+  public String getOwner() {
+    return tx.getOwner();
+  }
+
+  public long getAge(TimeUnit unit) {
+    return tx.getAge(unit);
+  }
+
+  @Override
+  public synchronized void close() {
+    if (isExpired()) {
+      end();
+    } else {
+      ended = true;
+      monitor.unregister(this);
+      // the owner is done with the transaction and it can be reused
+      tx.close();
+    }
+  }
+
+  /**
+   * Mark the snapshot as expired, called by the monitor which must not
+   * end the transaction since the owner may still be reading from it.
+   *
+   * @return true if this call expired the snapshot.
+   */
+  synchronized boolean expire() {
+    if (ended || expired) {
+      return false;
+    }
+    expired = true;
+    return true;
+  }
+
+  /**
+   * End the snapshot without giving the transaction back to the pool,
+   * by the owner closing an expired snapshot or when the environment
+   * is closed.
+   *
+   * @return true if this call ended the snapshot.
+   */
+  synchronized boolean end() {
+    if (ended) {
+      return false;
+    }
+    ended = true;
+    monitor.unregister(this);
+    tx.discard();
+    return true;
+  }
+}
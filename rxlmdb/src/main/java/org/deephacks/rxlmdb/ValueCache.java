@@ -0,0 +1,603 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.DirectBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Size bounded cache of values in front of LMDB with W-TinyLFU admission
+ * and eviction. New values enter a small LRU window and are then admitted
+ * to the main segmented LRU only if they have been used more often than
+ * the value they would evict, according to a count-min sketch of recent
+ * key frequencies. This keeps a skewed working set cached while scans of
+ * keys that are used once pass through the window.
+ * <p/>
+ * Values are copied into slots of power of two size classes carved from
+ * direct memory chunks, and both the slots and the chunks are bounded by
+ * the size of the cache. A chunk move to another size class once all its
+ * slots are free, and a class that run out of memory empty the least used
+ * chunk of another class. A slot is only reused after readers that copy
+ * from it are done.
+ * <p/>
+ * Writes invalidate keys inside their write transaction and remember the
+ * id of the transaction. Values read at an older snapshot are not cached,
+ * so a reader that race with a write cannot cache the value it replaced.
+ * A write transaction that abort keep values from being cached until a
+ * write transaction has committed with the same or a later id.
+ */
+final class ValueCache {
+  static final int MIN_SLOT = 16;
+  static final int MAX_SLOT = 64 * 1024;
+  static final int CHUNK_SIZE = 1024 * 1024;
+  private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SLOT) - Integer.numberOfTrailingZeros(MIN_SLOT) + 1;
+
+  final long capacity;
+  private final long windowCapacity;
+  private final long protectedCapacity;
+  private final ConcurrentHashMap<ByteBuffer, Entry> entries = new ConcurrentHashMap<>();
+  /** policy and slot allocation, reads skip policy updates if it is busy */
+  private final ReentrantLock lock = new ReentrantLock();
+  private final FrequencySketch sketch;
+  private final Segment window = new Segment();
+  private final Segment probation = new Segment();
+  private final Segment protect = new Segment();
+  private final Slabs slabs;
+  /** id of the last write transaction that wrote a key */
+  private volatile long lastWrite;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  ValueCache(long capacity) {
+    this.capacity = Math.max(capacity, MAX_SLOT);
+    this.windowCapacity = Math.max(MAX_SLOT, this.capacity / 100);
+    this.protectedCapacity = (this.capacity - windowCapacity) * 8 / 10;
+    this.sketch = new FrequencySketch(this.capacity / 64);
+    this.slabs = new Slabs(this.capacity);
+  }
+
+  /**
+   * @return a copy of the value or null if the key is not cached.
+   */
+  byte[] get(byte[] key) {
+    ByteBuffer wrapped = ByteBuffer.wrap(key);
+    Entry entry = entries.get(wrapped);
+    byte[] value = entry == null ? null : entry.copy(slabs);
+    if (value == null) {
+      misses.increment();
+      record(wrapped, null);
+      return null;
+    }
+    hits.increment();
+    record(wrapped, entry);
+    return value;
+  }
+
+  /**
+   * Cache a value that was read by a transaction with id txnId.
+   */
+  void put(byte[] key, DirectBuffer value, long txnId) {
+    int length = value.capacity();
+    if (length > MAX_SLOT || txnId < lastWrite) {
+      return;
+    }
+    ByteBuffer wrapped = ByteBuffer.wrap(key);
+    lock.lock();
+    try {
+      if (txnId < lastWrite || entries.containsKey(wrapped)) {
+        return;
+      }
+      int slotClass = slotClass(length);
+      while (weight() + slotSize(slotClass) > capacity && evict()) {
+      }
+      long slot = slabs.allocate(slotClass);
+      if (slot < 0 && rebalance(slotClass)) {
+        slot = slabs.allocate(slotClass);
+      }
+      if (slot < 0) {
+        // memory is held by other classes or readers, evicting more would not help
+        return;
+      }
+      Entry entry = new Entry(wrapped, slot, length, slotClass);
+      slabs.buffer(slot).putBytes(Slabs.offset(slot), value, 0, length);
+      entries.put(wrapped, entry);
+      window.add(entry);
+      while (window.weight > windowCapacity) {
+        Entry candidate = window.head;
+        window.remove(candidate);
+        probation.add(candidate);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Remove the key from the cache, called by a write transaction before
+   * it write or delete the key.
+   */
+  void invalidate(long txnId, byte[] key) {
+    written(txnId);
+    ByteBuffer wrapped = ByteBuffer.wrap(key);
+    // always lock, a put that already checked lastWrite may not have added
+    // its entry yet and is waited for, so the entry is removed below
+    lock.lock();
+    try {
+      Entry entry = entries.remove(wrapped);
+      if (entry != null) {
+        unlink(entry);
+        entry.retire(slabs);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void invalidate(long txnId, DirectBuffer key) {
+    byte[] bytes = new byte[key.capacity()];
+    key.getBytes(0, bytes);
+    invalidate(txnId, bytes);
+  }
+
+  /**
+   * Remove every key, called by write transactions that delete many keys.
+   */
+  void invalidateAll(long txnId) {
+    written(txnId);
+    lock.lock();
+    try {
+      for (Entry entry : entries.values()) {
+        entries.remove(entry.key);
+        unlink(entry);
+        entry.retire(slabs);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void written(long txnId) {
+    // write transactions are serialized, ids only go backwards after an abort
+    if (txnId > lastWrite) {
+      lastWrite = txnId;
+    }
+  }
+
+  CacheMetrics metrics() {
+    lock.lock();
+    try {
+      return new CacheMetrics(hits.sum(), misses.sum(), evictions.sum(), entries.size(), weight(), capacity);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Record the access of a key in the sketch and promote cached entries.
+   */
+  private void record(ByteBuffer key, Entry entry) {
+    if (!lock.tryLock()) {
+      return;
+    }
+    try {
+      sketch.increment(key.hashCode());
+      if (entry == null || entry.segment == null) {
+        return;
+      }
+      if (entry.segment == probation) {
+        probation.remove(entry);
+        protect.add(entry);
+        while (protect.weight > protectedCapacity) {
+          Entry demoted = protect.head;
+          protect.remove(demoted);
+          probation.add(demoted);
+        }
+      } else {
+        entry.segment.moveToTail(entry);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Evict the least frequently used of the most recently admitted entry of
+   * probation and the least recently used entry of probation.
+   *
+   * @return false if the cache is empty.
+   */
+  private boolean evict() {
+    Entry victim = probation.head;
+    Entry candidate = probation.tail;
+    Entry evicted;
+    if (victim == null) {
+      evicted = protect.head != null ? protect.head : window.head;
+    } else if (victim == candidate) {
+      evicted = victim;
+    } else {
+      evicted = sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode()) ? victim : candidate;
+    }
+    if (evicted == null) {
+      return false;
+    }
+    entries.remove(evicted.key);
+    unlink(evicted);
+    evicted.retire(slabs);
+    evictions.increment();
+    return true;
+  }
+
+  /**
+   * Evict every entry of the least used chunk of another size class, so
+   * that the chunk can be given to a class that has run out of memory.
+   *
+   * @return false if no chunk can be taken from another class.
+   */
+  private boolean rebalance(int slotClass) {
+    int chunk = slabs.leastUsedChunk(slotClass);
+    if (chunk < 0) {
+      return false;
+    }
+    for (Entry entry : entries.values()) {
+      if (Slabs.chunk(entry.slot) == chunk) {
+        entries.remove(entry.key);
+        unlink(entry);
+        entry.retire(slabs);
+        evictions.increment();
+      }
+    }
+    return true;
+  }
+
+  private void unlink(Entry entry) {
+    if (entry.segment != null) {
+      entry.segment.remove(entry);
+    }
+  }
+
+  private long weight() {
+    return window.weight + probation.weight + protect.weight;
+  }
+
+  static int slotClass(int length) {
+    int size = Math.max(MIN_SLOT, Integer.highestOneBit(Math.max(1, length) * 2 - 1));
+    return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_SLOT);
+  }
+
+  static int slotSize(int slotClass) {
+    return MIN_SLOT << slotClass;
+  }
+
+  private static final class Entry {
+    private static final int RETIRED = Integer.MIN_VALUE;
+    private static final AtomicIntegerFieldUpdater<Entry> STATE =
+      AtomicIntegerFieldUpdater.newUpdater(Entry.class, "state");
+
+    final ByteBuffer key;
+    final long slot;
+    final int length;
+    final int slotClass;
+    /** number of readers copying the value, negative when retired */
+    private volatile int state;
+    Segment segment;
+    Entry prev;
+    Entry next;
+
+    Entry(ByteBuffer key, long slot, int length, int slotClass) {
+      this.key = key;
+      this.slot = slot;
+      this.length = length;
+      this.slotClass = slotClass;
+    }
+
+    byte[] copy(Slabs slabs) {
+      int current;
+      do {
+        current = state;
+        if (current < 0) {
+          return null;
+        }
+      } while (!STATE.compareAndSet(this, current, current + 1));
+      try {
+        byte[] value = new byte[length];
+        slabs.buffer(slot).getBytes(Slabs.offset(slot), value);
+        return value;
+      } finally {
+        if (STATE.decrementAndGet(this) == RETIRED) {
+          slabs.free(slot);
+        }
+      }
+    }
+
+    /**
+     * Free the slot now or when the last reader is done.
+     */
+    void retire(Slabs slabs) {
+      if (STATE.getAndAdd(this, RETIRED) == 0) {
+        slabs.free(slot);
+      }
+    }
+  }
+
+  /**
+   * LRU list of entries, head is least recently used.
+   */
+  private static final class Segment {
+    Entry head;
+    Entry tail;
+    long weight;
+
+    void add(Entry entry) {
+      entry.segment = this;
+      entry.prev = tail;
+      entry.next = null;
+      if (tail == null) {
+        head = entry;
+      } else {
+        tail.next = entry;
+      }
+      tail = entry;
+      weight += slotSize(entry.slotClass);
+    }
+
+    void remove(Entry entry) {
+      if (entry.prev == null) {
+        head = entry.next;
+      } else {
+        entry.prev.next = entry.next;
+      }
+      if (entry.next == null) {
+        tail = entry.prev;
+      } else {
+        entry.next.prev = entry.prev;
+      }
+      entry.prev = null;
+      entry.next = null;
+      entry.segment = null;
+      weight -= slotSize(entry.slotClass);
+    }
+
+    void moveToTail(Entry entry) {
+      if (entry != tail) {
+        remove(entry);
+        add(entry);
+      }
+    }
+  }
+
+  /**
+   * Direct memory chunks that are each divided into slots of one size
+   * class. A chunk is given to a class when the class need more slots and
+   * taken back once all its slots are free. Free slots of a chunk are
+   * linked through their first bytes. A slot is addressed by the index of
+   * its chunk in the high bits and its offset in the low bits.
+   * <p/>
+   * Slots are freed by readers that finish copying a retired value, so
+   * slabs have a lock of their own.
+   */
+  private static final class Slabs {
+    final int chunkSize;
+    final int maxChunks;
+    private final List<Chunk> chunks = new ArrayList<>();
+    private final ArrayDeque<Chunk> freeChunks = new ArrayDeque<>();
+    /** chunks of each class that have free slots */
+    private final List<ArrayDeque<Chunk>> available = new ArrayList<>(CLASSES);
+    private volatile DirectBuffer[] buffers = new DirectBuffer[0];
+
+    Slabs(long capacity) {
+      this.chunkSize = (int) Math.min(CHUNK_SIZE, Long.highestOneBit(capacity));
+      this.maxChunks = (int) Math.min(Integer.MAX_VALUE, capacity / chunkSize);
+      for (int i = 0; i < CLASSES; i++) {
+        available.add(new ArrayDeque<>());
+      }
+    }
+
+    /**
+     * @return a free slot or -1 if every chunk is used by other classes.
+     */
+    synchronized long allocate(int slotClass) {
+      ArrayDeque<Chunk> partial = available.get(slotClass);
+      Chunk chunk = partial.peek();
+      if (chunk == null) {
+        chunk = freeChunks.poll();
+        if (chunk == null) {
+          chunk = newChunk();
+          if (chunk == null) {
+            return -1;
+          }
+        }
+        chunk.assign(slotClass);
+        partial.add(chunk);
+      }
+      int offset = chunk.allocate();
+      if (chunk.isFull(chunkSize)) {
+        partial.poll();
+      }
+      return (long) chunk.index << 32 | offset;
+    }
+
+    synchronized void free(long slot) {
+      Chunk chunk = chunks.get(chunk(slot));
+      boolean full = chunk.isFull(chunkSize);
+      chunk.free(offset(slot));
+      if (chunk.used == 0) {
+        if (!full) {
+          available.get(chunk.slotClass).remove(chunk);
+        }
+        chunk.slotClass = Chunk.NONE;
+        freeChunks.add(chunk);
+      } else if (full) {
+        available.get(chunk.slotClass).add(chunk);
+      }
+    }
+
+    /**
+     * @return index of the chunk of another class with the fewest slots
+     * in use, or -1 if there is none.
+     */
+    synchronized int leastUsedChunk(int slotClass) {
+      Chunk least = null;
+      for (Chunk chunk : chunks) {
+        if (chunk.slotClass != Chunk.NONE && chunk.slotClass != slotClass && (least == null || chunk.used < least.used)) {
+          least = chunk;
+        }
+      }
+      return least == null ? -1 : least.index;
+    }
+
+    private Chunk newChunk() {
+      if (chunks.size() >= maxChunks) {
+        return null;
+      }
+      Chunk chunk = new Chunk(chunks.size(), new DirectBuffer(ByteBuffer.allocateDirect(chunkSize)));
+      chunks.add(chunk);
+      DirectBuffer[] buffers = Arrays.copyOf(this.buffers, chunks.size());
+      buffers[chunk.index] = chunk.buffer;
+      this.buffers = buffers;
+      return chunk;
+    }
+
+    DirectBuffer buffer(long slot) {
+      return buffers[chunk(slot)];
+    }
+
+    static int chunk(long slot) {
+      return (int) (slot >>> 32);
+    }
+
+    static int offset(long slot) {
+      return (int) slot;
+    }
+  }
+
+  private static final class Chunk {
+    private static final int NONE = -1;
+
+    final int index;
+    final DirectBuffer buffer;
+    int slotClass = NONE;
+    int slotSize;
+    int used;
+    /** offset of the first slot that has never been used */
+    int carved;
+    /** offset of the first free slot, which hold the offset of the next */
+    int freeHead = NONE;
+
+    Chunk(int index, DirectBuffer buffer) {
+      this.index = index;
+      this.buffer = buffer;
+    }
+
+    void assign(int slotClass) {
+      this.slotClass = slotClass;
+      this.slotSize = slotSize(slotClass);
+      this.used = 0;
+      this.carved = 0;
+      this.freeHead = NONE;
+    }
+
+    int allocate() {
+      int offset;
+      if (freeHead != NONE) {
+        offset = freeHead;
+        freeHead = buffer.getInt(offset);
+      } else {
+        offset = carved;
+        carved += slotSize;
+      }
+      used++;
+      return offset;
+    }
+
+    void free(int offset) {
+      buffer.putInt(offset, freeHead);
+      freeHead = offset;
+      used--;
+    }
+
+    boolean isFull(int chunkSize) {
+      return freeHead == NONE && carved + slotSize > chunkSize;
+    }
+  }
+
+  /**
+   * Count-min sketch with four 4-bit counters per key. Counters are halved
+   * once the number of increments reach ten times the number of counters,
+   * so that the sketch follow recent frequencies.
+   */
+  static final class FrequencySketch {
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long HALF = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int size;
+
+    FrequencySketch(long counters) {
+      int length = (int) Math.min(1 << 20, Long.highestOneBit(Math.max(64, counters / 16) * 2 - 1));
+      this.table = new long[length];
+      this.mask = length * 16 - 1;
+      this.sampleSize = length * 16 * 10;
+    }
+
+    void increment(int hash) {
+      boolean added = false;
+      for (int i = 0; i < 4; i++) {
+        int index = index(hash, i);
+        int shift = (index & 15) << 2;
+        long word = table[index >>> 4];
+        if (((word >>> shift) & 15) < 15) {
+          table[index >>> 4] = word + (1L << shift);
+          added = true;
+        }
+      }
+      if (added && ++size >= sampleSize) {
+        reset();
+      }
+    }
+
+    int frequency(int hash) {
+      int frequency = 15;
+      for (int i = 0; i < 4; i++) {
+        int index = index(hash, i);
+        frequency = Math.min(frequency, (int) (table[index >>> 4] >>> ((index & 15) << 2)) & 15);
+      }
+      return frequency;
+    }
+
+    private void reset() {
+      for (int i = 0; i < table.length; i++) {
+        table[i] = (table[i] >>> 1) & HALF;
+      }
+      size /= 2;
+    }
+
+    private int index(int hash, int i) {
+      long h = (hash + SEEDS[i]) * SEEDS[i];
+      h += h >>> 32;
+      return (int) h & mask;
+    }
+  }
+}
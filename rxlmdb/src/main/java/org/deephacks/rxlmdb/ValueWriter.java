@@ -0,0 +1,16 @@
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.DirectBuffer;
+
+/**
+ * Serialize a value straight into space reserved inside the LMDB memory map
+ * instead of serializing into a byte array that is then copied. The buffer
+ * is only valid during the call, inside the write transaction. Accessing
+ * the buffer afterwards will cause SIGSEGV.
+ */
+public interface ValueWriter {
+  /**
+   * @param value buffer with the capacity that was reserved for the value.
+   */
+  void write(DirectBuffer value);
+}
@@ -0,0 +1,57 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How the writer thread wait for writes and how producers wait for
+ * free slots when the write buffer is full.
+ */
+public enum WaitStrategy {
+  /** lowest latency but burns a cpu core while idle */
+  BUSY_SPIN {
+    @Override
+    void idle(int counter) {
+    }
+  },
+  /** low latency, give other threads a chance to run while idle */
+  YIELD {
+    @Override
+    void idle(int counter) {
+      Thread.yield();
+    }
+  },
+  /** spin and yield for a while, then park for short periods */
+  PARK {
+    @Override
+    void idle(int counter) {
+      if (counter < 100) {
+        return;
+      } else if (counter < 200) {
+        Thread.yield();
+      } else {
+        LockSupport.parkNanos(PARK_NANOS);
+      }
+    }
+  };
+
+  static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+  /**
+   * @param counter number of times idle have been called in a row.
+   */
+  abstract void idle(int counter);
+}
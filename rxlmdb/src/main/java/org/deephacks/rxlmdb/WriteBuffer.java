@@ -0,0 +1,338 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.DirectBuffer;
+import org.fusesource.lmdbjni.Transaction;
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Memtable that absorb puts and deletes of a database and flush them to
+ * LMDB in a single transaction in key order, once the buffered bytes
+ * exceed the budget. Random writes then dirty each page once per flush
+ * instead of once per transaction. Flushes run on a background thread and
+ * writers only wait for a flush when twice the budget is buffered.
+ * <p/>
+ * Keys are kept in a concurrent skip list and values are copied into an
+ * arena of large direct chunks owned by the table, which is released all
+ * at once when the table is dropped. Deletes are kept as tombstones until
+ * flushed. While a flush is in progress the flushed table stay readable,
+ * so reads see the latest data by looking in the active table, the
+ * flushing table and then LMDB.
+ */
+final class WriteBuffer implements Loggable {
+  /** marker value of deleted keys */
+  static final DirectBuffer TOMBSTONE = new DirectBuffer(new byte[0]);
+  /** same order as LMDB */
+  static final Comparator<byte[]> COMPARATOR = WriteBuffer::compare;
+  static final int MAX_CHUNK_SIZE = 1024 * 1024;
+  static final int MIN_CHUNK_SIZE = 4096;
+
+  final RxDb db;
+  final long budget;
+  final int chunkSize;
+  /** swapping tables exclude writers so that no write end up in a table being flushed */
+  private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+  private final Object flushLock = new Object();
+  private volatile Table active;
+  private volatile Table flushing;
+  /** last flushed table, still read by transactions older than its commit */
+  private volatile Table flushed;
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+  private Scheduler.Worker worker;
+
+  WriteBuffer(RxDb db, long budget) {
+    this.db = db;
+    this.budget = budget;
+    this.chunkSize = (int) Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, budget));
+    this.active = new Table(chunkSize);
+  }
+
+  void put(KeyValue kv) {
+    write(kv.keyBytes(), kv);
+  }
+
+  void delete(byte[] key) {
+    write(key, null);
+  }
+
+  /**
+   * @param kv kv to copy into the active table, or null for a delete.
+   */
+  private void write(byte[] key, KeyValue kv) {
+    long size;
+    swapLock.readLock().lock();
+    try {
+      // copy while holding the lock so that the arena belong to the table
+      Table table = active;
+      DirectBuffer value = kv == null ? TOMBSTONE : table.arena.copy(kv);
+      DirectBuffer previous = table.entries.put(key, value);
+      size = value.capacity() - (previous == null ? -key.length : previous.capacity());
+    } finally {
+      swapLock.readLock().unlock();
+    }
+    long buffered = bytes.addAndGet(size);
+    if (buffered >= 2 * budget) {
+      // writes outpace the background flush, stall the writer instead of growing without bound
+      flush(false);
+    } else if (buffered >= budget) {
+      scheduleFlush();
+    }
+  }
+
+  /**
+   * Flush in the background so that the writer crossing the budget does
+   * not pay for the whole flush.
+   */
+  private void scheduleFlush() {
+    if (!flushScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    worker().schedule(() -> {
+      flushScheduled.set(false);
+      try {
+        flush(false);
+      } catch (Throwable e) {
+        // entries are restored and the next write will try again
+        logger().error("Flush error.", e);
+      }
+    });
+  }
+
+  private synchronized Scheduler.Worker worker() {
+    if (worker == null) {
+      worker = Schedulers.newThread().createWorker();
+    }
+    return worker;
+  }
+
+  /**
+   * Flush what is left and stop the background flush.
+   */
+  void close() {
+    flush(true);
+    flushed = null;
+    synchronized (this) {
+      if (worker != null) {
+        worker.unsubscribe();
+      }
+    }
+  }
+
+  /**
+   * @return the buffered value, TOMBSTONE if the key is deleted or null
+   * if the key is not buffered.
+   */
+  DirectBuffer get(byte[] key) {
+    // read active before flushing, a table is flushing before it stop being active
+    DirectBuffer value = active.entries.get(key);
+    if (value != null) {
+      return value;
+    }
+    Table flushing = this.flushing;
+    return flushing == null ? null : flushing.entries.get(key);
+  }
+
+  /**
+   * Lookup for a read transaction that may have been started before the
+   * last flush committed and cannot see the flushed entries in LMDB.
+   *
+   * @see WriteBuffer#get(byte[])
+   */
+  DirectBuffer get(byte[] key, Transaction tx) {
+    DirectBuffer value = get(key);
+    if (value != null) {
+      return value;
+    }
+    // read flushed after flushing, a table is flushed before it stop flushing
+    Table flushed = flushedBefore(tx);
+    return flushed == null ? null : flushed.entries.get(key);
+  }
+
+  boolean isEmpty() {
+    return active.entries.isEmpty() && flushing == null;
+  }
+
+  boolean isEmpty(Transaction tx) {
+    return isEmpty() && flushedBefore(tx) == null;
+  }
+
+  /**
+   * @return the last flushed table if the transaction cannot see its commit.
+   */
+  private Table flushedBefore(Transaction tx) {
+    Table flushed = this.flushed;
+    return flushed == null || tx.getId() >= flushed.commitTxnId ? null : flushed;
+  }
+
+  /**
+   * Snapshot of buffered entries in ascending key order, where entries of
+   * the active table override entries of the flushing table, which override
+   * entries of the last flushed table that the transaction cannot see.
+   */
+  NavigableMap<byte[], DirectBuffer> snapshot(Transaction tx) {
+    TreeMap<byte[], DirectBuffer> snapshot = new TreeMap<>(COMPARATOR);
+    // same order as get
+    Table active = this.active;
+    Table flushing = this.flushing;
+    Table flushed = flushedBefore(tx);
+    if (flushed != null) {
+      snapshot.putAll(flushed.entries);
+    }
+    if (flushing != null) {
+      snapshot.putAll(flushing.entries);
+    }
+    snapshot.putAll(active.entries);
+    return snapshot;
+  }
+
+  /**
+   * Write the buffered entries to LMDB in key order in a single transaction.
+   * The flushed table is kept until the next flush so that transactions
+   * started before the commit still find its entries. Transactions older
+   * than the flush before that see LMDB as of their snapshot.
+   *
+   * @param force flush even if the buffer is below the budget.
+   */
+  void flush(boolean force) {
+    synchronized (flushLock) {
+      if (active.entries.isEmpty() || (!force && bytes.get() < budget)) {
+        return;
+      }
+      Table table = active;
+      swapLock.writeLock().lock();
+      try {
+        flushing = table;
+        active = new Table(chunkSize);
+        bytes.set(0);
+      } finally {
+        swapLock.writeLock().unlock();
+      }
+      try (Transaction tx = db.lmdb.env.createWriteTransaction()) {
+        for (Map.Entry<byte[], DirectBuffer> entry : table.entries.entrySet()) {
+          byte[] key = entry.getKey();
+          if (entry.getValue() == TOMBSTONE) {
+            db.delete(tx, key);
+          } else {
+            db.write(tx, new KeyValue(DirectKeys.wrap(key), entry.getValue()), 0);
+          }
+        }
+        table.commitTxnId = tx.getId();
+        tx.commit();
+        flushed = table;
+      } catch (Throwable e) {
+        // put the entries back unless they have been written again
+        swapLock.readLock().lock();
+        try {
+          // values keep the arena of the failed table alive
+          table.entries.forEach((key, value) -> {
+            if (active.entries.putIfAbsent(key, value) == null) {
+              // count restored entries against the budget again
+              bytes.addAndGet(key.length + value.capacity());
+            }
+          });
+        } finally {
+          swapLock.readLock().unlock();
+        }
+        throw e;
+      } finally {
+        flushing = null;
+      }
+    }
+  }
+
+  /**
+   * Entries of a table and the arena that hold its values.
+   */
+  static final class Table {
+    final ConcurrentSkipListMap<byte[], DirectBuffer> entries = new ConcurrentSkipListMap<>(COMPARATOR);
+    final Arena arena;
+    /** id of the transaction that flushed the table, published by the flushed field */
+    long commitTxnId;
+
+    Table(int chunkSize) {
+      this.arena = new Arena(chunkSize);
+    }
+  }
+
+  /**
+   * Bump allocator that carve values out of large direct chunks instead of
+   * allocating direct memory for every put, which is slow and fragment
+   * native memory. Values are slices that keep their chunk reachable, so
+   * chunks are freed by the garbage collector once the table and every
+   * value read from it are unreachable. Values larger than a quarter of a
+   * chunk get a buffer of their own to not waste the rest of the chunk.
+   */
+  static final class Arena {
+    final int chunkSize;
+    private ByteBuffer chunk;
+
+    Arena(int chunkSize) {
+      this.chunkSize = chunkSize;
+    }
+
+    DirectBuffer copy(KeyValue kv) {
+      if (kv.isOffHeap()) {
+        DirectBuffer value = kv.valueBuffer();
+        DirectBuffer copy = allocate(value.capacity());
+        copy.putBytes(0, value, 0, value.capacity());
+        return copy;
+      }
+      byte[] value = kv.valueBytes();
+      DirectBuffer copy = allocate(value.length);
+      copy.putBytes(0, value);
+      return copy;
+    }
+
+    synchronized DirectBuffer allocate(int size) {
+      if (size > chunkSize / 4) {
+        return new DirectBuffer(ByteBuffer.allocateDirect(size));
+      }
+      if (chunk == null || chunk.remaining() < size) {
+        chunk = ByteBuffer.allocateDirect(chunkSize);
+      }
+      ByteBuffer slice = chunk.slice();
+      slice.limit(size);
+      chunk.position(chunk.position() + size);
+      return new DirectBuffer(slice.slice());
+    }
+  }
+
+  /**
+   * Unsigned lexicographic order of full keys.
+   */
+  static int compare(byte[] key1, byte[] key2) {
+    int length = Math.min(key1.length, key2.length);
+    for (int i = 0; i < length; i++) {
+      int cmp = (key1[i] & 0xff) - (key2[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return key1.length - key2.length;
+  }
+}
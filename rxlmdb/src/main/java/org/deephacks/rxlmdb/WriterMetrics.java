@@ -0,0 +1,76 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.deephacks.rxlmdb;
+
+/**
+ * A snapshot of the current batch settings and statistics of the writer thread.
+ */
+public class WriterMetrics {
+  private final int batchSize;
+  private final long lingerNanos;
+  private final long commitLatencyNanos;
+  private final int queueDepth;
+  private final long commits;
+  private final long writes;
+
+  WriterMetrics(int batchSize, long lingerNanos, long commitLatencyNanos, int queueDepth, long commits, long writes) {
+    this.batchSize = batchSize;
+    this.lingerNanos = lingerNanos;
+    this.commitLatencyNanos = commitLatencyNanos;
+    this.queueDepth = queueDepth;
+    this.commits = commits;
+    this.writes = writes;
+  }
+
+  /** max number of buffer entries written per transaction */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /** time the writer wait for more entries before committing a partial batch */
+  public long getLingerNanos() {
+    return lingerNanos;
+  }
+
+  /** moving average of the time it takes to write and commit a transaction */
+  public long getCommitLatencyNanos() {
+    return commitLatencyNanos;
+  }
+
+  /** number of buffer entries waiting after the last drain */
+  public int getQueueDepth() {
+    return queueDepth;
+  }
+
+  public long getCommits() {
+    return commits;
+  }
+
+  /** number of buffer entries written */
+  public long getWrites() {
+    return writes;
+  }
+
+  @Override
+  public String toString() {
+    return "WriterMetrics{" +
+      "batchSize=" + batchSize +
+      ", lingerNanos=" + lingerNanos +
+      ", commitLatencyNanos=" + commitLatencyNanos +
+      ", queueDepth=" + queueDepth +
+      ", commits=" + commits +
+      ", writes=" + writes +
+      '}';
+  }
+}
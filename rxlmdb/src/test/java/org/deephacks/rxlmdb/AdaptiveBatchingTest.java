@@ -0,0 +1,81 @@
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.ByteUnit;
+import org.junit.Test;
+import rx.Observable;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class AdaptiveBatchingTest {
+  static final long TARGET = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void testFixed() {
+    AdaptiveBatching batching = AdaptiveBatching.fixed(512);
+    batching.update(10, TARGET * 10, 0);
+    batching.update(512, 10, 1000);
+    assertThat(batching.batchSize).isEqualTo(512);
+    assertThat(batching.lingerNanos).isEqualTo(0L);
+    assertThat(batching.metrics().getCommits()).isEqualTo(2L);
+    assertThat(batching.metrics().getWrites()).isEqualTo(522L);
+  }
+
+  @Test
+  public void testGrowOnBacklog() {
+    AdaptiveBatching batching = AdaptiveBatching.adaptive(TARGET, 512);
+    int size = batching.batchSize;
+    for (int i = 0; i < 100; i++) {
+      batching.update(batching.batchSize, TARGET / 10, 10_000);
+    }
+    assertThat(batching.batchSize).isGreaterThan(size);
+    assertThat(batching.batchSize).isAtMost(512);
+  }
+
+  @Test
+  public void testShrinkAboveTarget() {
+    AdaptiveBatching batching = AdaptiveBatching.adaptive(TARGET, 512);
+    int size = batching.batchSize;
+    for (int i = 0; i < 100; i++) {
+      batching.update(batching.batchSize, TARGET * 2, 10_000);
+    }
+    assertThat(batching.batchSize).isLessThan(size);
+    assertThat(batching.batchSize).isAtLeast(AdaptiveBatching.MIN_BATCH);
+    assertThat(batching.lingerNanos).isEqualTo(0L);
+  }
+
+  @Test
+  public void testLingerOnLightLoad() {
+    AdaptiveBatching batching = AdaptiveBatching.adaptive(TARGET, 512);
+    for (int i = 0; i < 100; i++) {
+      batching.update(1, TARGET / 10, 0);
+    }
+    assertThat(batching.lingerNanos).isGreaterThan(0L);
+    // never spend more than the latency budget lingering
+    assertThat(batching.lingerNanos).isAtMost(TARGET);
+  }
+
+  @Test
+  public void testAdaptiveWriter() {
+    RxLmdb lmdb = RxLmdb.builder()
+      .size(64, ByteUnit.MEBIBYTES)
+      .adaptiveBatching(1, TimeUnit.MILLISECONDS)
+      .build();
+    RxDb db = lmdb.dbBuilder().build();
+    try {
+      for (int i = 0; i < 100; i++) {
+        db.batch(Fixture.kv(i, i));
+      }
+      db.putAsync(Fixture.kv(100, 100)).toBlocking().first();
+      assertThat(db.scan().flatMap(Observable::from).count().toBlocking().first()).isEqualTo(101);
+      WriterMetrics metrics = lmdb.writerMetrics();
+      assertThat(metrics.getWrites()).isEqualTo(101L);
+      assertThat(metrics.getCommits()).isAtLeast(1L);
+      assertThat(metrics.getBatchSize()).isAtLeast(AdaptiveBatching.MIN_BATCH);
+    } finally {
+      db.close();
+      lmdb.close();
+    }
+  }
+}
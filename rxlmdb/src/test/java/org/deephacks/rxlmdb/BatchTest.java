@@ -1,5 +1,6 @@
 package org.deephacks.rxlmdb;
 
+import org.fusesource.lmdbjni.ByteUnit;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -8,7 +9,11 @@ import rx.Subscriber;
 import rx.schedulers.Schedulers;
 import rx.subjects.PublishSubject;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -58,6 +63,168 @@ public class BatchTest {
     assertThat(list.size(), is(2));
   }
 
+  /**
+   * Results of a synchronous source are not lost before subscribing.
+   */
+  @Test
+  public void testBatchJust() {
+    BatchResult result = db.batch(Observable.just(Arrays.asList(Fixture.values[0], Fixture.values[1])))
+      .toBlocking().first();
+    assertThat(result.isCommitted(), is(true));
+    assertThat(result.getCount(), is(2));
+    assertThat(db.get(Fixture.__2), is(Fixture.__2));
+  }
+
+  @Test
+  public void testBatchSkipEmpty() {
+    List<BatchResult> results = db.batch(Observable.just(
+      Arrays.asList(Fixture.values[0]), Collections.<KeyValue>emptyList(), Arrays.asList(Fixture.values[1])))
+      .toList().toBlocking().first();
+    assertThat(results.size(), is(2));
+    assertThat(results.get(0).getCount(), is(1));
+    assertThat(results.get(1).getSequence() >= results.get(0).getSequence(), is(true));
+  }
+
+  @Test
+  public void testBatchResult() throws InterruptedException {
+    PublishSubject<List<KeyValue>> subject = PublishSubject.create();
+    Observable<BatchResult> result = db.batch(subject);
+    List<BatchResult> results = new ArrayList<>();
+    CountDownLatch completed = new CountDownLatch(1);
+    result.doOnCompleted(completed::countDown).subscribe(results::add);
+    subject.onNext(Arrays.asList(Fixture.values[0], Fixture.values[1]));
+    subject.onNext(Arrays.asList(Fixture.values[2], new KeyValue(new byte[0], Fixture.__1)));
+    subject.onCompleted();
+    assertThat(completed.await(10, TimeUnit.SECONDS), is(true));
+    assertThat(results.size(), is(2));
+    assertThat(results.get(0).getCount(), is(2));
+    assertThat(results.get(0).isCommitted(), is(true));
+    assertThat(results.get(0).getFailedKeys().isEmpty(), is(true));
+    assertThat(results.get(1).getSequence() >= results.get(0).getSequence(), is(true));
+    assertThat(results.get(1).getFailedKeys().size(), is(1));
+    assertThat(results.get(1).getFailedKeys().get(0).length, is(0));
+    assertThat(db.get(Fixture.__3), is(Fixture.__3));
+  }
+
+  @Test
+  public void testBatchResultCompleteAfterAcks() throws InterruptedException {
+    PublishSubject<List<KeyValue>> subject = PublishSubject.create();
+    CountDownLatch completed = new CountDownLatch(1);
+    AtomicInteger acks = new AtomicInteger();
+    db.batch(subject).subscribe(r -> acks.incrementAndGet(), e -> {}, completed::countDown);
+    for (KeyValue kv : Fixture.values) {
+      subject.onNext(Arrays.asList(kv));
+    }
+    subject.onCompleted();
+    assertThat(completed.await(10, TimeUnit.SECONDS), is(true));
+    assertThat(acks.get(), is(Fixture.values.length));
+  }
+
+  /**
+   * A put that fill the map should roll back alone and not take the rest of the batch with it.
+   */
+  @Test
+  public void testBatchMapFull() throws InterruptedException {
+    RxLmdb small = RxLmdb.builder().size(1, ByteUnit.MEBIBYTES).build();
+    RxDb smallDb = small.dbBuilder().build();
+    try {
+      byte[] key = new byte[] { 1, 2 };
+      KeyValue full = new KeyValue(key, new byte[2 * 1024 * 1024]);
+      PublishSubject<List<KeyValue>> subject = PublishSubject.create();
+      List<BatchResult> results = new ArrayList<>();
+      CountDownLatch completed = new CountDownLatch(1);
+      smallDb.batch(subject).doOnCompleted(completed::countDown).subscribe(results::add);
+      subject.onNext(Arrays.asList(Fixture.values[0], full, Fixture.values[2]));
+      subject.onCompleted();
+      assertThat(completed.await(10, TimeUnit.SECONDS), is(true));
+      assertThat(results.get(0).isCommitted(), is(true));
+      assertThat(results.get(0).getFailedKeys().size(), is(1));
+      assertThat(results.get(0).getFailedKeys().get(0), is(key));
+      assertThat(smallDb.get(Fixture.__1), is(Fixture.__1));
+      assertThat(smallDb.get(Fixture.__3), is(Fixture.__3));
+      assertThat(smallDb.get(key) == null, is(true));
+    } finally {
+      smallDb.close();
+      small.close();
+    }
+  }
+
+  @Test
+  public void testBatchOffHeap() throws InterruptedException {
+    PublishSubject<List<KeyValue>> subject = PublishSubject.create();
+    CountDownLatch completed = new CountDownLatch(1);
+    db.batch(subject).subscribe(r -> {}, e -> {}, completed::countDown);
+    subject.onNext(Arrays.asList(PutTest.offHeap(Fixture.__1), PutTest.offHeap(Fixture.__2)));
+    subject.onCompleted();
+    assertThat(completed.await(10, TimeUnit.SECONDS), is(true));
+    db.batch(PutTest.offHeap(Fixture.__3));
+    db.putAsync(Fixture.values[3]).toBlocking().first();
+    assertThat(db.get(Fixture.__1), is(Fixture.__1));
+    assertThat(db.get(Fixture.__2), is(Fixture.__2));
+    assertThat(db.get(Fixture.__3), is(Fixture.__3));
+  }
+
+  @Test
+  public void testBatchMultipleDbsJust() {
+    RxDb index = lmdb.dbBuilder().name("index").build();
+    BatchResult result = lmdb.batch(Observable.just(Arrays.asList(
+      new DbKeyValue(db, Fixture.values[0]),
+      new DbKeyValue(index, new KeyValue(Fixture.__1, Fixture.__2))))).toBlocking().first();
+    assertThat(result.isCommitted(), is(true));
+    assertThat(db.get(Fixture.__1), is(Fixture.__1));
+    assertThat(index.get(Fixture.__1), is(Fixture.__2));
+  }
+
+  @Test
+  public void testBatchMultipleDbs() throws InterruptedException {
+    RxDb index = lmdb.dbBuilder().name("index").build();
+    PublishSubject<List<DbKeyValue>> subject = PublishSubject.create();
+    List<BatchResult> results = new ArrayList<>();
+    CountDownLatch completed = new CountDownLatch(1);
+    lmdb.batch(subject).doOnCompleted(completed::countDown).subscribe(results::add);
+    subject.onNext(Arrays.asList(
+      new DbKeyValue(db, Fixture.values[0]),
+      new DbKeyValue(index, new KeyValue(Fixture.__1, Fixture.__2))));
+    // an invalid key fail every kv in the list
+    subject.onNext(Arrays.asList(
+      new DbKeyValue(db, Fixture.values[2]),
+      new DbKeyValue(index, new KeyValue(new byte[0], Fixture.__3))));
+    subject.onCompleted();
+    assertThat(completed.await(10, TimeUnit.SECONDS), is(true));
+    assertThat(results.get(0).isCommitted(), is(true));
+    assertThat(results.get(0).getCount(), is(2));
+    assertThat(results.get(1).isCommitted(), is(false));
+    assertThat(results.get(1).getFailedKeys().size(), is(2));
+    assertThat(db.get(Fixture.__1), is(Fixture.__1));
+    assertThat(index.get(Fixture.__1), is(Fixture.__2));
+    assertThat(db.get(Fixture.__3) == null, is(true));
+    index.close();
+  }
+
+  /**
+   * Many threads can hand over kvs to the writer without serializing them first.
+   */
+  @Test
+  public void testBatchKeyValueConcurrent() throws InterruptedException {
+    int threads = 4;
+    int writes = 250;
+    CountDownLatch latch = new CountDownLatch(threads);
+    for (int i = 0; i < threads; i++) {
+      final int thread = i;
+      new Thread(() -> {
+        for (int j = 0; j < writes; j++) {
+          db.batch(Fixture.kv(thread * writes + j, j));
+        }
+        latch.countDown();
+      }).start();
+    }
+    latch.await();
+    // a put through the same writer is committed after all batches
+    db.putAsync(Fixture.kv(threads * writes, 0)).toBlocking().first();
+    long count = db.scan(KeyRange.forward()).flatMap(Observable::from).count().toBlocking().first();
+    assertThat(count, is((long) threads * writes + 1));
+  }
+
   static Observable<KeyValue> burst(AtomicInteger counter) {
     return Observable.create((Subscriber<? super KeyValue> s) -> {
       int rounds = 5;
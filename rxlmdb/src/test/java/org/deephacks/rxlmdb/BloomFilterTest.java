@@ -0,0 +1,116 @@
+package org.deephacks.rxlmdb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rx.Observable;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.deephacks.rxlmdb.Fixture.*;
+
+public class BloomFilterTest {
+  RxLmdb lmdb;
+
+  @Before
+  public void before() {
+    lmdb = RxLmdb.tmp();
+  }
+
+  @After
+  public void after() {
+    lmdb.close();
+  }
+
+  @Test
+  public void testFalsePositives() {
+    BloomFilter filter = new BloomFilter(10_000);
+    for (int i = 0; i < 10_000; i++) {
+      filter.add(key(i));
+    }
+    int falsePositives = 0;
+    for (int i = 0; i < 10_000; i++) {
+      assertThat(filter.mightContain(key(i))).isTrue();
+      if (filter.mightContain(key(i + 10_000))) {
+        falsePositives++;
+      }
+    }
+    assertThat(falsePositives).isLessThan(300);
+  }
+
+  @Test
+  public void testGet() {
+    RxDb db = lmdb.dbBuilder().name("bloom").bloomFilter(1000).build();
+    db.put(Observable.from(_1_to_9));
+    db.put(new KeyValue(new byte[]{(byte) 0xff}, _1));
+    for (byte[] key : keys) {
+      assertThat(db.get(key)).isEqualTo(key);
+    }
+    assertThat(db.get(new byte[]{1, 2})).isNull();
+    List<KeyValue> result = db.multiGet(Arrays.asList(__1, new byte[]{1, 2})).toBlocking().first();
+    assertThat(result.get(0).value()).isEqualTo(__1);
+    assertThat(result.get(1)).isSameAs(KeyValue.NOT_FOUND);
+
+    db.delete(__1);
+    db.rebuildBloomFilter();
+    assertThat(db.get(__1)).isNull();
+    assertThat(db.get(__2)).isEqualTo(__2);
+    assertThat(db.get(new byte[]{(byte) 0xff})).isEqualTo(_1);
+    db.close();
+  }
+
+  @Test
+  public void testPersist() {
+    RxDb db = lmdb.dbBuilder().name("bloom").bloomFilter(1000).build();
+    db.put(Observable.from(_1_to_9));
+    db.close();
+    Path path = lmdb.getPath().resolve("bloom.bloom");
+    assertThat(Files.exists(path)).isTrue();
+
+    // loaded from file
+    db = lmdb.dbBuilder().name("bloom").bloomFilter(1000).build();
+    assertThat(db.get(__9)).isEqualTo(__9);
+    db.close();
+
+    // written since the filter was saved, so it is rebuilt
+    RxDb other = lmdb.dbBuilder().name("bloom").build();
+    other.put(new KeyValue(new byte[]{10, 10}, _1));
+    other.close();
+    db = lmdb.dbBuilder().name("bloom").bloomFilter(1000).build();
+    assertThat(db.get(new byte[]{10, 10})).isEqualTo(_1);
+    assertThat(db.get(__1)).isEqualTo(__1);
+    db.close();
+  }
+
+  /**
+   * Keys written while the filter is rebuilt must not be lost by the new filter.
+   */
+  @Test
+  public void testConcurrentRebuild() throws Exception {
+    RxDb db = lmdb.dbBuilder().name("bloom").bloomFilter(10_000).build();
+    int writes = 2_000;
+    Thread writer = new Thread(() -> {
+      for (int i = 0; i < writes; i++) {
+        db.put(new KeyValue(key(i), _1));
+      }
+    });
+    writer.start();
+    while (writer.isAlive()) {
+      db.rebuildBloomFilter();
+    }
+    writer.join();
+    for (int i = 0; i < writes; i++) {
+      assertThat(db.get(key(i))).isEqualTo(_1);
+    }
+    db.close();
+  }
+
+  static byte[] key(int i) {
+    return ByteBuffer.allocate(4).putInt(i).array();
+  }
+}
@@ -0,0 +1,119 @@
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.ByteUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rx.Observable;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+public class BulkLoaderTest {
+  RxDb db;
+  RxLmdb lmdb;
+
+  @Before
+  public void before() {
+    lmdb = RxLmdb.tmp();
+    db = lmdb.dbBuilder().build();
+  }
+
+  @After
+  public void after() {
+    db.close();
+    db.lmdb.close();
+  }
+
+  @Test
+  public void testLoadUnsorted() {
+    List<KeyValue> kvs = shuffled(1000);
+    // overwrite some keys with a later value
+    for (int i = 0; i < 100; i++) {
+      kvs.add(Fixture.kv(i, 1));
+    }
+    BulkLoader loader = db.bulkLoaderBuilder()
+      .runSize(4, ByteUnit.KIBIBYTES)
+      .chunkSize(64)
+      .build();
+    LoadProgress done = loader.load(Observable.from(kvs)).toBlocking().last();
+    assertThat(done.getPhase()).isEqualTo(LoadProgress.Phase.DONE);
+    assertThat(done.getRead()).isEqualTo(1100L);
+    assertThat(done.getRuns()).isGreaterThan(1);
+    assertThat(done.getWritten()).isEqualTo(1000L);
+    assertSorted(1000);
+    assertThat(db.get(Fixture.kv(0, 0).key())).isEqualTo(Fixture.kv(0, 1).value());
+    assertThat(db.get(Fixture.kv(500, 0).key())).isEqualTo(Fixture.kv(500, 0).value());
+    assertThat(Files.exists(loader.getDir().resolve(BulkLoader.MANIFEST))).isFalse();
+  }
+
+  @Test
+  public void testLoadIntoExisting() {
+    db.put(Fixture.kv(500, 9));
+    db.put(Fixture.kv(2000, 9));
+    db.bulkLoaderBuilder().build().load(Observable.from(shuffled(1000))).toBlocking().last();
+    assertSorted(1001);
+    assertThat(db.get(Fixture.kv(500, 0).key())).isEqualTo(Fixture.kv(500, 0).value());
+  }
+
+  /**
+   * Stop the load after the first chunk and resume it without input. Loading
+   * again into the same work directory fail rather than ignoring the input.
+   */
+  @Test
+  public void testResume() throws Exception {
+    Path dir = Files.createTempDirectory("rxlmdb-load");
+    List<LoadProgress> progress = new ArrayList<>();
+    db.bulkLoaderBuilder().dir(dir).runSize(4, ByteUnit.KIBIBYTES).chunkSize(100).build()
+      .load(Observable.from(shuffled(1000)))
+      .takeFirst(p -> p.getPhase() == LoadProgress.Phase.MERGE)
+      .toBlocking().forEach(progress::add);
+    assertThat(progress.get(0).getWritten()).isEqualTo(100L);
+    assertThat(Files.exists(dir.resolve(BulkLoader.MANIFEST))).isTrue();
+
+    BulkLoader loader = db.bulkLoaderBuilder().dir(dir).chunkSize(100).build();
+    try {
+      loader.load(Observable.from(shuffled(10))).toBlocking().last();
+      fail("unfinished load should not be overwritten");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    LoadProgress done = loader.resume().toBlocking().last();
+    assertThat(done.getWritten()).isEqualTo(1000L);
+    assertSorted(1000);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testResumeNothing() {
+    db.bulkLoaderBuilder().build().resume().toBlocking().last();
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void testLoadNull() {
+    db.bulkLoaderBuilder().build().load(Observable.just(Fixture.kv(0, 0), null)).toBlocking().last();
+  }
+
+  private void assertSorted(int expected) {
+    List<KeyValue> result = new ArrayList<>();
+    db.scan().toBlocking().forEach(result::addAll);
+    assertThat(result.size()).isEqualTo(expected);
+    for (int i = 1; i < result.size(); i++) {
+      assertThat(DirectBufferComparator.compareKeys(result.get(i - 1).key(), result.get(i).key())).isLessThan(0);
+    }
+  }
+
+  private static List<KeyValue> shuffled(int n) {
+    List<KeyValue> kvs = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      kvs.add(Fixture.kv(i, 0));
+    }
+    Collections.shuffle(kvs);
+    return kvs;
+  }
+}
@@ -0,0 +1,167 @@
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.ByteUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rx.Observable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.deephacks.rxlmdb.Fixture.*;
+
+public class CacheTest {
+  RxLmdb lmdb;
+  RxDb db;
+
+  @Before
+  public void before() {
+    lmdb = RxLmdb.tmp();
+    db = lmdb.dbBuilder().cache(1, ByteUnit.MEBIBYTES).build();
+  }
+
+  @After
+  public void after() {
+    db.close();
+    lmdb.close();
+  }
+
+  @Test
+  public void testHitsAndMisses() {
+    db.put(values[0]);
+    assertThat(db.get(__1)).isEqualTo(__1);
+    assertThat(db.get(__1)).isEqualTo(__1);
+    assertThat(db.get(Observable.just(__1)).toBlocking().first().value()).isEqualTo(__1);
+    assertThat(db.get(__2)).isNull();
+    CacheMetrics metrics = db.cacheMetrics();
+    assertThat(metrics.getHits()).isEqualTo(2L);
+    assertThat(metrics.getMisses()).isEqualTo(2L);
+    assertThat(metrics.getEntries()).isEqualTo(1);
+    // user transactions do not use the cache
+    try (RxTx tx = lmdb.readTx()) {
+      assertThat(db.get(tx, __1)).isEqualTo(__1);
+    }
+    assertThat(db.cacheMetrics().getHits()).isEqualTo(2L);
+  }
+
+  @Test
+  public void testWritesInvalidate() {
+    db.put(values[0]);
+    assertThat(db.get(__1)).isEqualTo(__1);
+    db.put(new KeyValue(__1, __2));
+    assertThat(db.get(__1)).isEqualTo(__2);
+    db.batch(Observable.just(Arrays.asList(new KeyValue(__1, __3)))).toBlocking().last();
+    assertThat(db.get(__1)).isEqualTo(__3);
+    assertThat(db.update(__1, value -> __4).toBlocking().first()).isEqualTo(__4);
+    assertThat(db.get(__1)).isEqualTo(__4);
+    try (RxTx tx = lmdb.writeTx()) {
+      db.put(tx, new KeyValue(__1, __5));
+      // the write is not committed and remain invisible
+      assertThat(db.get(__1)).isEqualTo(__4);
+      tx.commit();
+    }
+    assertThat(db.get(__1)).isEqualTo(__5);
+    db.delete(__1);
+    assertThat(db.get(__1)).isNull();
+    db.append(values[8]);
+    assertThat(db.get(__9)).isEqualTo(__9);
+    db.truncate();
+    assertThat(db.get(__9)).isNull();
+    assertThat(db.cacheMetrics().getEntries()).isEqualTo(0);
+  }
+
+  @Test
+  public void testRangeDeleteInvalidateRange() {
+    db.put(Observable.from(_1_to_9));
+    for (byte[] key : keys) {
+      db.get(key);
+    }
+    assertThat(db.delete(KeyRange.range(__2, __4), 10)).isEqualTo(3L);
+    assertThat(db.get(__3)).isNull();
+    assertThat(db.cacheMetrics().getEntries()).isEqualTo(6);
+    long hits = db.cacheMetrics().getHits();
+    assertThat(db.get(__5)).isEqualTo(__5);
+    assertThat(db.cacheMetrics().getHits()).isEqualTo(hits + 1);
+  }
+
+  /**
+   * Readers that race with writes never leave a value in the cache that
+   * has been replaced by a commit.
+   */
+  @Test
+  public void testConcurrentReadsSeeCommits() throws InterruptedException {
+    AtomicBoolean running = new AtomicBoolean(true);
+    List<Thread> readers = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      Thread reader = new Thread(() -> {
+        while (running.get()) {
+          db.get(__1);
+        }
+      });
+      reader.start();
+      readers.add(reader);
+    }
+    try {
+      for (int i = 0; i < 500; i++) {
+        byte[] value = String.valueOf(i).getBytes();
+        db.put(new KeyValue(__1, value));
+        assertThat(db.get(__1)).isEqualTo(value);
+      }
+    } finally {
+      running.set(false);
+      for (Thread reader : readers) {
+        reader.join();
+      }
+    }
+  }
+
+  /**
+   * A frequently read key survive a scan of keys that are read once, which
+   * evict keys that are read once.
+   */
+  @Test
+  public void testFrequentKeysStay() {
+    byte[] value = new byte[1000];
+    db.put(new KeyValue(key(0), value));
+    for (int i = 0; i < 10; i++) {
+      db.get(key(0));
+    }
+    for (int i = 1; i < 3000; i++) {
+      db.put(new KeyValue(key(i), value));
+      assertThat(db.get(key(i))).isEqualTo(value);
+    }
+    CacheMetrics metrics = db.cacheMetrics();
+    assertThat(metrics.getEvictions()).isGreaterThan(0L);
+    assertThat(metrics.getSize()).isAtMost(metrics.getCapacity());
+    long hits = metrics.getHits();
+    db.get(key(0));
+    assertThat(db.cacheMetrics().getHits()).isEqualTo(hits + 1);
+  }
+
+  /**
+   * Memory held by one size class is moved to another class that need it.
+   */
+  @Test
+  public void testSizeClassesRebalance() {
+    byte[] small = new byte[1000];
+    for (int i = 0; i < 2000; i++) {
+      db.put(new KeyValue(key(i), small));
+      db.get(key(i));
+    }
+    byte[] large = new byte[10_000];
+    db.put(new KeyValue(key(0), large));
+    assertThat(db.get(key(0))).isEqualTo(large);
+    long hits = db.cacheMetrics().getHits();
+    assertThat(db.get(key(0))).isEqualTo(large);
+    assertThat(db.cacheMetrics().getHits()).isEqualTo(hits + 1);
+    assertThat(db.cacheMetrics().getSize()).isAtMost(db.cacheMetrics().getCapacity());
+  }
+
+  private static byte[] key(int i) {
+    return String.format("%05d", i).getBytes();
+  }
+}
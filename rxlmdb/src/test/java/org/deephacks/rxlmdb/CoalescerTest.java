@@ -0,0 +1,140 @@
+package org.deephacks.rxlmdb;
+
+import org.deephacks.rxlmdb.LmdbWriter.Op;
+import org.deephacks.rxlmdb.LmdbWriter.Write;
+import org.fusesource.lmdbjni.Transaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rx.Observable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.deephacks.rxlmdb.Fixture.*;
+
+public class CoalescerTest {
+  RxDb db;
+  RxLmdb lmdb;
+
+  @Before
+  public void before() {
+    lmdb = RxLmdb.builder().coalesceWrites().build();
+    db = lmdb.dbBuilder().build();
+  }
+
+  @After
+  public void after() {
+    db.close();
+    db.lmdb.close();
+  }
+
+  /**
+   * Results should be the same as if every write was applied in order.
+   */
+  @Test
+  public void testLastWriterWins() {
+    db.put(values[3]);
+    Write put = put(new KeyValue(__1, __2));
+    Write deletePut = delete(__1);
+    Write deleteMissing = delete(__2);
+    Write batch = batch(new KeyValue(__3, __1), new KeyValue(__1, __3), new KeyValue(__3, __3));
+    Write deleteExisting = delete(__4);
+    Write putDeleted = put(new KeyValue(__4, __5));
+    Write deleteDeleted = delete(__2);
+    List<Write> writes = Arrays.asList(put, deletePut, deleteMissing, batch, deleteExisting, putDeleted, deleteDeleted);
+
+    Coalescer coalescer = new Coalescer(lmdb);
+    assertThat(coalescer.coalesce(writes)).isTrue();
+    try (Transaction tx = lmdb.env.createWriteTransaction()) {
+      coalescer.apply(tx, true);
+      tx.commit();
+    }
+    assertThat(put.value).isTrue();
+    assertThat(deletePut.value).isTrue();
+    assertThat(deleteMissing.value).isFalse();
+    assertThat(deleteExisting.value).isTrue();
+    assertThat(deleteDeleted.value).isFalse();
+    assertThat(batch.failed).isNull();
+    assertThat(db.get(__1)).isEqualTo(__3);
+    assertThat(db.get(__2)).isNull();
+    assertThat(db.get(__3)).isEqualTo(__3);
+    assertThat(db.get(__4)).isEqualTo(__5);
+  }
+
+  @Test
+  public void testFailingKeyReportedByOwner() {
+    Write batch = batch(new KeyValue(__1, __1), new KeyValue(new byte[0], __2), new KeyValue(__1, __3));
+    Write put = put(new KeyValue(new byte[0], __3));
+    Coalescer coalescer = new Coalescer(lmdb);
+    assertThat(coalescer.coalesce(Arrays.asList(batch, put))).isTrue();
+    try (Transaction tx = lmdb.env.createWriteTransaction()) {
+      coalescer.apply(tx, true);
+      tx.commit();
+    }
+    // the put superseded the empty key of the batch and failed for both
+    assertThat(batch.failed).hasSize(1);
+    assertThat(batch.failed.get(0)).isEqualTo(new byte[0]);
+    assertThat(put.error).isNotNull();
+    assertThat(db.get(__1)).isEqualTo(__3);
+  }
+
+  @Test
+  public void testFailingPutFailSupersededPuts() {
+    Write first = put(new KeyValue(new byte[0], __1));
+    Write second = put(new KeyValue(new byte[0], __2));
+    Write other = put(new KeyValue(__3, __3));
+    Coalescer coalescer = new Coalescer(lmdb);
+    assertThat(coalescer.coalesce(Arrays.asList(first, other, second))).isTrue();
+    try (Transaction tx = lmdb.env.createWriteTransaction()) {
+      coalescer.apply(tx, false);
+      tx.commit();
+    }
+    assertThat(first.error).isNotNull();
+    assertThat(second.error).isNotNull();
+    assertThat(other.error).isNull();
+    assertThat(db.get(__3)).isEqualTo(__3);
+  }
+
+  @Test
+  public void testWriter() {
+    List<Observable<Boolean>> results = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      db.batch(kv(i % 10, i));
+    }
+    results.add(db.putAsync(kv(5, 1000)));
+    results.add(db.deleteAsync(kv(6, 0).key()));
+    results.add(db.deleteAsync(kv(6, 0).key()));
+    List<Boolean> values = Observable.merge(results).toList().toBlocking().first();
+    assertThat(values).containsExactly(true, true, false);
+    assertThat(db.get(kv(5, 0).key())).isEqualTo(kv(0, 1000).value());
+    assertThat(db.get(kv(9, 0).key())).isEqualTo(kv(0, 99).value());
+    assertThat(db.get(kv(6, 0).key())).isNull();
+  }
+
+  Write put(KeyValue kv) {
+    Write write = new Write();
+    write.op = Op.PUT;
+    write.db = db;
+    write.kv = kv;
+    return write;
+  }
+
+  Write delete(byte[] key) {
+    Write write = new Write();
+    write.op = Op.DELETE;
+    write.db = db;
+    write.key = key;
+    return write;
+  }
+
+  Write batch(KeyValue... kvs) {
+    Write write = new Write();
+    write.op = Op.BATCH;
+    write.db = db;
+    write.kvs = Arrays.asList(kvs);
+    return write;
+  }
+}
@@ -106,4 +106,47 @@ public class DeleteTest {
     assertTrue(expected.isEmpty());
   }
 
+  @Test
+  public void testDeleteKeyRange() {
+    db.put(Observable.from(_1_to_9));
+    assertThat(db.delete(KeyRange.range(__3, __5))).isEqualTo(3L);
+    assertThat(db.delete(KeyRange.range(__8, __7))).isEqualTo(2L);
+    assertThat(db.delete(KeyRange.atMost(__1))).isEqualTo(1L);
+    for (byte[] key : keys) {
+      boolean remaining = key == __2 || key == __6 || key == __9;
+      assertThat(db.get(key) != null).isEqualTo(remaining);
+    }
+    assertThat(db.delete(KeyRange.forward())).isEqualTo(3L);
+    assertThat(toStreamBlocking(db.scan(KeyRange.forward())).count()).isEqualTo(0L);
+  }
+
+  @Test
+  public void testDeleteKeyRangeChunks() {
+    RxTx tx = lmdb.writeTx();
+    for (int i = 0; i < 1000; i++) {
+      db.put(tx, kv(i, i));
+    }
+    tx.commit();
+    assertThat(db.delete(KeyRange.range(kv(100, 0).key(), kv(799, 0).key()), 64)).isEqualTo(700L);
+    assertThat(toStreamBlocking(db.scan(KeyRange.forward())).count()).isEqualTo(300L);
+  }
+
+  @Test
+  public void testDeleteKeyRangeAbort() {
+    db.put(Observable.from(_1_to_9));
+    RxTx tx = lmdb.writeTx();
+    assertThat(db.delete(tx, KeyRange.atLeast(__5))).isEqualTo(5L);
+    assertThat(toStreamBlocking(db.scan(tx, KeyRange.forward())).count()).isEqualTo(4L);
+    tx.abort();
+    assertThat(toStreamBlocking(db.scan(KeyRange.forward())).count()).isEqualTo(9L);
+  }
+
+  @Test
+  public void testTruncate() {
+    db.put(Observable.from(_1_to_9));
+    db.truncate();
+    assertThat(toStreamBlocking(db.scan(KeyRange.forward())).count()).isEqualTo(0L);
+    db.put(Observable.from(_1_to_9));
+    assertThat(toStreamBlocking(db.scan(KeyRange.forward())).count()).isEqualTo(9L);
+  }
 }
@@ -32,6 +32,11 @@ public class DirectBufferComparatorTest {
     assertThat(compare(key(1,0,0,0,0,0,0,0), stop(1,0,0,0,0,0,0)), is(0));
     assertThat(compare(key(0,0,0,0,0,0,0,0), stop(1,0,0,0,0,0,0)), is(-1));
     assertThat(compare(key(0,1,0,0,0,0,0,0), stop(0,0,0,0,0,0,0,0)), is(1));
+    // first differing byte decide even if later bytes in the same word differ
+    assertThat(compare(key(1,2,0,0,0,0,0,0), stop(2,1,0,0,0,0,0,0)), is(-1));
+    assertThat(compare(key(2,1,0,0,0,0,0,0), stop(1,2,0,0,0,0,0,0)), is(1));
+    assertThat(compare(key(0,0,0,1,0,0,0,2), stop(0,0,0,0,0,0,0,3)), is(1));
+    assertThat(compare(key(0,0,0,0,0,0,0,0,1), stop(0,0,0,0,0,0,0,0,2)), is(-1));
   }
 
   DirectBuffer key(int... bytes) {
@@ -0,0 +1,90 @@
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.ByteUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.deephacks.rxlmdb.Fixture.*;
+
+public class DurabilityTest {
+  RxLmdb lmdb;
+  RxDb db;
+
+  @After
+  public void after() {
+    db.close();
+    lmdb.close();
+  }
+
+  @Test
+  public void testSyncOnCommit() {
+    open(RxLmdb.builder());
+    db.putAsync(values[0]).toBlocking().first();
+    long sequence = lmdb.commitSequence();
+    assertThat(sequence).isGreaterThan(0L);
+    assertThat(lmdb.durableSequence().toBlocking().first()).isEqualTo(sequence);
+    assertThat(lmdb.awaitDurable(sequence).toBlocking().first()).isEqualTo(sequence);
+  }
+
+  @Test
+  public void testThrowingWatermarkSubscriber() {
+    open(RxLmdb.builder());
+    lmdb.durableSequence().subscribe(sequence -> {
+      if (sequence > 0) {
+        throw new IllegalStateException("subscriber error");
+      }
+    });
+    assertThat(db.putAsync(values[0]).timeout(10, TimeUnit.SECONDS).toBlocking().first()).isTrue();
+    assertThat(db.putAsync(values[1]).timeout(10, TimeUnit.SECONDS).toBlocking().first()).isTrue();
+    assertThat(lmdb.writer().durability.worker).isNull();
+  }
+
+  @Test
+  public void testSyncInterval() {
+    open(RxLmdb.builder().noSync().syncInterval(10, TimeUnit.MILLISECONDS));
+    db.putAsync(values[0]).toBlocking().first();
+    long sequence = lmdb.commitSequence();
+    long durable = lmdb.durableSequence()
+      .filter(s -> s >= sequence)
+      .timeout(10, TimeUnit.SECONDS)
+      .toBlocking().first();
+    assertThat(durable).isEqualTo(sequence);
+  }
+
+  /**
+   * Without interval or threshold nothing is flushed until someone wait.
+   */
+  @Test
+  public void testAwaitRequestSync() {
+    open(RxLmdb.builder().noSync());
+    db.putAsync(values[0]).toBlocking().first();
+    long sequence = lmdb.commitSequence();
+    assertThat(lmdb.durableSequence().toBlocking().first()).isEqualTo(0L);
+    long durable = lmdb.awaitDurable(sequence)
+      .timeout(10, TimeUnit.SECONDS)
+      .toBlocking().first();
+    assertThat(durable).isEqualTo(sequence);
+  }
+
+  @Test
+  public void testSyncThreshold() {
+    open(RxLmdb.builder().noSync().syncThreshold(1, ByteUnit.KIBIBYTES));
+    db.putAsync(new KeyValue(__1, new byte[512])).toBlocking().first();
+    assertThat(lmdb.durableSequence().toBlocking().first()).isEqualTo(0L);
+    db.putAsync(new KeyValue(__2, new byte[512])).toBlocking().first();
+    long sequence = lmdb.commitSequence();
+    long durable = lmdb.durableSequence()
+      .filter(s -> s >= sequence)
+      .timeout(10, TimeUnit.SECONDS)
+      .toBlocking().first();
+    assertThat(durable).isEqualTo(sequence);
+  }
+
+  private void open(RxLmdb.Builder builder) {
+    lmdb = builder.size(64, ByteUnit.MEBIBYTES).build();
+    db = lmdb.dbBuilder().build();
+  }
+}
@@ -1,10 +1,15 @@
 package org.deephacks.rxlmdb;
 
+import org.fusesource.lmdbjni.DirectBuffer;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import rx.Observable;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -83,4 +88,75 @@ public class GetTest {
     assertThat(result.get(3).key()).isEqualTo(__8);
     assertThat(result.get(3).value()).isEqualTo(__8);
   }
+
+  @Test
+  public void testMultiGet() {
+    byte[] missing = new byte[]{5, 6};
+    byte[] last = new byte[]{10, 10};
+    List<KeyValue> result = db.multiGet(Arrays.asList(__9, missing, __1, null, __5, __1, last))
+      .toBlocking().first();
+    assertThat(result).hasSize(7);
+    assertThat(result.get(0).value()).isEqualTo(__9);
+    assertThat(result.get(1)).isSameAs(KeyValue.NOT_FOUND);
+    assertThat(result.get(2).value()).isEqualTo(__1);
+    assertThat(result.get(3)).isSameAs(KeyValue.NOT_FOUND);
+    assertThat(result.get(4).value()).isEqualTo(__5);
+    assertThat(result.get(5).value()).isEqualTo(__1);
+    assertThat(result.get(6)).isSameAs(KeyValue.NOT_FOUND);
+  }
+
+  @Test
+  public void testMultiGetMapper() {
+    List<byte[]> keys = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      keys.add(new byte[]{(byte) (i % 12), (byte) (i % 12)});
+    }
+    RxTx tx = db.lmdb.readTx();
+    List<Byte> result = db.multiGet(tx, (key, value) -> value.getByte(0), keys, (byte) -1)
+      .toBlocking().first();
+    tx.abort();
+    for (int i = 0; i < 1000; i++) {
+      int expected = i % 12 == 0 || i % 12 > 9 ? -1 : i % 12;
+      assertThat(result.get(i)).isEqualTo((byte) expected);
+    }
+  }
+
+  @Test
+  public void testContainsAll() {
+    byte[] missing = new byte[]{5, 6};
+    byte[] last = new byte[]{10, 10};
+    BitSet result = db.containsAll(Arrays.asList(__9, missing, __1, null, __5, __1, last));
+    assertThat(result.toString()).isEqualTo("{0, 2, 4, 5}");
+  }
+
+  @Test
+  public void testContains() {
+    List<byte[]> keys = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      keys.add(new byte[]{(byte) (i % 12), (byte) (i % 12)});
+    }
+    List<Boolean> result = db.contains(Observable.from(keys)).toList().toBlocking().first();
+    assertThat(result).hasSize(1000);
+    for (int i = 0; i < 1000; i++) {
+      assertThat(result.get(i)).isEqualTo(i % 12 != 0 && i % 12 <= 9);
+    }
+  }
+
+  @Test
+  public void testGetZeroCopy() {
+    // max key size of LMDB
+    byte[] big = new byte[511];
+    big[0] = 10;
+    db.put(new KeyValue(big, __1));
+    DirectBuffer key = new DirectBuffer(ByteBuffer.allocateDirect(2));
+    key.putBytes(0, __2);
+    DirectMapper<Byte> mapper = (k, v) -> v.getByte(0);
+    RxTx tx = db.lmdb.readTx();
+    assertThat(db.get(tx, mapper, __1)).isEqualTo((byte) 1);
+    assertThat(db.get(tx, mapper, key)).isEqualTo((byte) 2);
+    assertThat(db.get(tx, mapper, new byte[]{1, 2})).isNull();
+    assertThat(db.get(tx, big)).isEqualTo(__1);
+    assertThat(db.get(tx, __3)).isEqualTo(__3);
+    tx.abort();
+  }
 }
@@ -0,0 +1,113 @@
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.ByteUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rx.Observable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.deephacks.rxlmdb.Fixture.*;
+import static org.deephacks.rxlmdb.RxObservables.toStreamBlocking;
+
+public class GroupCommitTest {
+  RxDb db;
+  RxLmdb lmdb;
+
+  @Before
+  public void before() {
+    lmdb = RxLmdb.builder()
+      .size(64, ByteUnit.MEBIBYTES)
+      .groupCommit()
+      .build();
+    db = lmdb.dbBuilder().build();
+  }
+
+  @After
+  public void after() {
+    db.close();
+    lmdb.close();
+  }
+
+  @Test
+  public void testPutDelete() {
+    assertThat(db.put(values[0])).isTrue();
+    assertThat(db.get(__1)).isEqualTo(__1);
+    assertThat(db.delete(__1)).isTrue();
+    assertThat(db.delete(__1)).isFalse();
+    assertThat(db.get(__1)).isNull();
+  }
+
+  @Test
+  public void testPutAsync() {
+    List<Observable<Boolean>> results = new ArrayList<>();
+    for (KeyValue kv : _1_to_9) {
+      results.add(db.putAsync(kv));
+    }
+    Observable.merge(results).toBlocking().forEach(result -> assertThat(result).isTrue());
+    assertThat(toStreamBlocking(db.scan(KeyRange.forward())).count()).isEqualTo(9L);
+    assertThat(db.deleteAsync(__9).toBlocking().first()).isTrue();
+    assertThat(toStreamBlocking(db.scan(KeyRange.forward())).count()).isEqualTo(8L);
+  }
+
+  @Test
+  public void testConcurrentPuts() throws InterruptedException {
+    int threads = 8;
+    int puts = 500;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch latch = new CountDownLatch(threads);
+    for (int i = 0; i < threads; i++) {
+      final int thread = i;
+      executor.execute(() -> {
+        for (int j = 0; j < puts; j++) {
+          db.put(Fixture.kv(thread * puts + j, j));
+        }
+        latch.countDown();
+      });
+    }
+    assertThat(latch.await(30, TimeUnit.SECONDS)).isTrue();
+    executor.shutdown();
+    assertThat(toStreamBlocking(db.scan(KeyRange.forward())).count()).isEqualTo((long) threads * puts);
+  }
+
+  @Test
+  public void testPutError() {
+    Throwable error = db.putAsync(new KeyValue(new byte[0], __1))
+      .materialize().toBlocking().first().getThrowable();
+    assertThat(error).isNotNull();
+    // a failed write does not affect other writes in the same transaction
+    assertThat(db.put(values[1])).isTrue();
+    assertThat(db.get(__2)).isEqualTo(__2);
+  }
+
+  @Test
+  public void testThrowingSubscriber() throws InterruptedException {
+    CountDownLatch busy = new CountDownLatch(1);
+    // keep the writer busy so that the following writes end up in the same transaction
+    Observable<byte[]> blocked = db.update(__1, value -> {
+      try {
+        busy.await();
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+      return __1;
+    });
+    db.putAsync(values[1]).subscribe(result -> {
+      throw new IllegalStateException("subscriber error");
+    });
+    Observable<Boolean> put = db.putAsync(values[2]);
+    Observable<byte[]> updated = db.update(__4, value -> __4);
+    busy.countDown();
+    assertThat(blocked.timeout(10, TimeUnit.SECONDS).toBlocking().first()).isEqualTo(__1);
+    assertThat(put.timeout(10, TimeUnit.SECONDS).toBlocking().first()).isTrue();
+    assertThat(updated.timeout(10, TimeUnit.SECONDS).toBlocking().first()).isEqualTo(__4);
+    assertThat(db.get(__2)).isEqualTo(__2);
+  }
+}
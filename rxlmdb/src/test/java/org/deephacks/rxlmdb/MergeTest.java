@@ -0,0 +1,108 @@
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.DirectBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rx.Observable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.deephacks.rxlmdb.Fixture.*;
+
+public class MergeTest {
+  RxLmdb lmdb;
+
+  @Before
+  public void before() {
+    lmdb = RxLmdb.tmp();
+  }
+
+  @After
+  public void after() {
+    lmdb.close();
+  }
+
+  @Test
+  public void testLongAdd() {
+    RxDb db = lmdb.dbBuilder().name("add").mergeOperator(new MergeOperator.LongAdd()).build();
+    List<KeyValue> deltas = new ArrayList<>();
+    for (int i = 0; i < 10_000; i++) {
+      deltas.add(new KeyValue(keys[i % 9], toBytes(1)));
+    }
+    List<BatchResult> results = db.merge(Observable.from(deltas))
+      .timeout(10, TimeUnit.SECONDS)
+      .toList().toBlocking().first();
+    // deltas are combined so there are far fewer hand overs than deltas
+    assertThat(results.size()).isLessThan(deltas.size());
+    int merged = 0;
+    for (BatchResult result : results) {
+      assertThat(result.isCommitted()).isTrue();
+      merged += result.getCount();
+    }
+    assertThat(merged).isAtMost(deltas.size());
+    for (int i = 0; i < 9; i++) {
+      assertThat(toLong(db.get(keys[i]))).isEqualTo(i == 0 ? 1112L : 1111L);
+    }
+    db.merge(Observable.just(new KeyValue(__1, toBytes(-12)))).toBlocking().last();
+    assertThat(toLong(db.get(__1))).isEqualTo(1100L);
+  }
+
+  @Test
+  public void testLongMaxMin() {
+    RxDb max = lmdb.dbBuilder().name("max").mergeOperator(new MergeOperator.LongMax()).build();
+    RxDb min = lmdb.dbBuilder().name("min").mergeOperator(new MergeOperator.LongMin()).build();
+    Observable<KeyValue> deltas = Observable.just(5L, -3L, 7L, 2L).map(v -> new KeyValue(__1, toBytes(v)));
+    max.merge(deltas).toBlocking().last();
+    min.merge(deltas).toBlocking().last();
+    assertThat(toLong(max.get(__1))).isEqualTo(7L);
+    assertThat(toLong(min.get(__1))).isEqualTo(-3L);
+    max.merge(Observable.just(new KeyValue(__1, toBytes(3)))).toBlocking().last();
+    assertThat(toLong(max.get(__1))).isEqualTo(7L);
+  }
+
+  @Test
+  public void testBoundedAppend() {
+    MergeOperator append = new MergeOperator.BoundedAppend(1, 3);
+    assertThat(append.merge(null, new byte[]{1})).isEqualTo(new byte[]{1});
+    assertThat(append.merge(new DirectBuffer(new byte[]{1, 2}), new byte[]{3, 4})).isEqualTo(new byte[]{2, 3, 4});
+    assertThat(append.combine(new byte[]{1}, new byte[]{2, 3, 4, 5})).isEqualTo(new byte[]{3, 4, 5});
+
+    RxDb db = lmdb.dbBuilder().name("append").mergeOperator(append).build();
+    db.merge(Observable.just(_1, _2, _3, _4, _5).map(v -> new KeyValue(__1, v))).toBlocking().last();
+    assertThat(db.get(__1)).isEqualTo(new byte[]{3, 4, 5});
+  }
+
+  /**
+   * A delta that fail to merge should not affect other keys.
+   */
+  @Test
+  public void testMergeError() {
+    RxDb db = lmdb.dbBuilder().name("append").mergeOperator(new MergeOperator.BoundedAppend(2, 3)).build();
+    db.merge(Observable.just(new KeyValue(__1, __1))).toBlocking().last();
+    List<byte[]> failed = db.merge(Observable.just(new KeyValue(__1, _1), new KeyValue(__2, __2)))
+      .flatMap(result -> Observable.from(result.getFailedKeys()))
+      .toList().toBlocking().first();
+    assertThat(failed).hasSize(1);
+    assertThat(failed.get(0)).isEqualTo(__1);
+    assertThat(db.get(__1)).isEqualTo(__1);
+    assertThat(db.get(__2)).isEqualTo(__2);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testNoMergeOperator() {
+    lmdb.dbBuilder().build().merge(Observable.just(values[0]));
+  }
+
+  static byte[] toBytes(long value) {
+    return ByteBuffer.allocate(8).putLong(value).array();
+  }
+
+  static long toLong(byte[] value) {
+    return ByteBuffer.wrap(value).getLong();
+  }
+}
@@ -0,0 +1,75 @@
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.DirectBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.deephacks.rxlmdb.RxObservables.toStreamBlocking;
+
+public class ProjectionTest {
+  RxDb db;
+
+  @Before
+  public void before() {
+    db = RxDb.tmp();
+    for (int i = 1; i <= 3; i++) {
+      // wide record with an id, a counter and a name
+      DirectBuffer value = new DirectBuffer(new byte[4096]);
+      value.putLong(0, i * 100L, ByteOrder.BIG_ENDIAN);
+      value.putInt(8, i, ByteOrder.BIG_ENDIAN);
+      value.putBytes(12, ("name" + i).getBytes());
+      db.put(new KeyValue(new byte[]{(byte) i}, value.byteArray()));
+    }
+    db.put(new KeyValue(new byte[]{4}, new byte[]{1, 2}));
+  }
+
+  @After
+  public void after() {
+    db.close();
+  }
+
+  @Test
+  public void testGetSlice() {
+    assertThat(db.get(DirectMapper.slice(12, 5), new byte[]{2})).isEqualTo("name2".getBytes());
+    // slices are cut at the end of the value
+    assertThat(db.get(DirectMapper.slice(1, 8), new byte[]{4})).isEqualTo(new byte[]{2});
+    assertThat(db.get(DirectMapper.slice(8, 8), new byte[]{4})).isEqualTo(new byte[0]);
+    assertThat(db.get(DirectMapper.slice(0, 8), new byte[]{5})).isNull();
+  }
+
+  @Test
+  public void testScanKeySlice() {
+    List<KeyValue> result = toStreamBlocking(db.scan(DirectMapper.keySlice(8, 4), KeyRange.forward()))
+      .collect(Collectors.toList());
+    assertThat(result).hasSize(4);
+    assertThat(result.get(0).key()).isEqualTo(new byte[]{1});
+    assertThat(result.get(0).value()).isEqualTo(new byte[]{0, 0, 0, 1});
+    assertThat(result.get(3).value()).isEqualTo(new byte[0]);
+  }
+
+  @Test
+  public void testScanProjection() {
+    Projection projection = Projection.builder()
+      .key()
+      .int64(0)
+      .int32(8)
+      .bytes(12, 5)
+      .build();
+    List<Object[]> result = toStreamBlocking(db.scan(projection, KeyRange.forward()))
+      .collect(Collectors.toList());
+    // the short value is skipped
+    assertThat(result).hasSize(3);
+    Object[] fields = result.get(2);
+    assertThat((byte[]) fields[0]).isEqualTo(new byte[]{3});
+    assertThat(fields[1]).isEqualTo(300L);
+    assertThat(fields[2]).isEqualTo(3);
+    assertThat((byte[]) fields[3]).isEqualTo("name3".getBytes());
+    assertThat(db.get(projection, new byte[]{1})[1]).isEqualTo(100L);
+  }
+}
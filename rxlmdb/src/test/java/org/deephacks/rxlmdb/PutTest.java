@@ -1,5 +1,6 @@
 package org.deephacks.rxlmdb;
 
+import org.fusesource.lmdbjni.DirectBuffer;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -8,6 +9,7 @@ import rx.Observer;
 import rx.functions.Action1;
 import rx.schedulers.Schedulers;
 
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicReference;
@@ -81,6 +83,104 @@ public class PutTest {
     assertTrue(expected.isEmpty());
   }
 
+  @Test
+  public void testLoadSorted() {
+    db.load(Observable.from(_1_to_9));
+    LinkedList<KeyValue> expected = Fixture.range(__1, __9);
+    toStreamBlocking(db.scan(KeyRange.forward()))
+      .forEach(kv -> assertThat(expected.pollFirst().key()).isEqualTo(kv.key()));
+    assertTrue(expected.isEmpty());
+  }
+
+  /**
+   * Keys that are out of order or lower than existing keys should be put, not appended.
+   */
+  @Test
+  public void testLoadUnsorted() {
+    db.put(values[4]);
+    db.load(Observable.from(new KeyValue[]{
+      values[5], values[0], values[6], values[6], values[2], values[8], values[1], values[7], values[3]
+    }));
+    LinkedList<KeyValue> expected = Fixture.range(__1, __9);
+    toStreamBlocking(db.scan(KeyRange.forward()))
+      .forEach(kv -> assertThat(expected.pollFirst().key()).isEqualTo(kv.key()));
+    assertTrue(expected.isEmpty());
+  }
+
+  @Test
+  public void testLoadCommit() {
+    db.put(values[8]);
+    RxTx tx = lmdb.writeTx();
+    db.load(tx, Observable.from(_1_to_9));
+    tx.commit();
+    LinkedList<KeyValue> expected = Fixture.range(__1, __9);
+    toStreamBlocking(db.scan(KeyRange.forward()))
+      .forEach(kv -> assertThat(expected.pollFirst().key()).isEqualTo(kv.key()));
+    assertTrue(expected.isEmpty());
+  }
+
+  @Test
+  public void testPutOffHeap() {
+    db.put(offHeap(__1));
+    RxTx tx = lmdb.writeTx();
+    db.put(tx, offHeap(__2));
+    db.append(tx, offHeap(__3));
+    tx.commit();
+    db.append(offHeap(__4));
+    db.put(Observable.just(offHeap(__5)));
+    db.load(Observable.just(offHeap(__6), offHeap(__7)));
+    db.putAsync(offHeap(__8)).toBlocking().first();
+    // heap backed buffers are copied
+    db.put(new KeyValue(new DirectBuffer(__9), new DirectBuffer(__9)));
+    LinkedList<KeyValue> expected = Fixture.range(__1, __9);
+    toStreamBlocking(db.scan(KeyRange.forward())).forEach(kv -> {
+      KeyValue next = expected.pollFirst();
+      assertThat(kv.key()).isEqualTo(next.key());
+      assertThat(kv.value()).isEqualTo(next.value());
+    });
+    assertTrue(expected.isEmpty());
+  }
+
+  @Test
+  public void testPutReserve() {
+    db.put(__1, 2, value -> value.putBytes(0, __1));
+    RxTx tx = lmdb.writeTx();
+    db.put(tx, __2, 2, value -> value.putBytes(0, __2));
+    tx.commit();
+    db.putAsync(__3, 2, value -> value.putBytes(0, __3)).toBlocking().first();
+    assertArrayEquals(db.get(__1), __1);
+    assertArrayEquals(db.get(__2), __2);
+    assertArrayEquals(db.get(__3), __3);
+  }
+
+  @Test
+  public void testPutReserveWriterError() {
+    try {
+      db.put(__1, 2, value -> {
+        throw new IllegalStateException();
+      });
+      fail("should throw");
+    } catch (IllegalStateException e) {
+    }
+    try {
+      db.putAsync(__2, 2, value -> {
+        throw new IllegalStateException();
+      }).toBlocking().first();
+      fail("should throw");
+    } catch (IllegalStateException e) {
+    }
+    assertThat(db.get(__1)).isNull();
+    assertThat(db.get(__2)).isNull();
+  }
+
+  static KeyValue offHeap(byte[] bytes) {
+    DirectBuffer key = new DirectBuffer(ByteBuffer.allocateDirect(bytes.length));
+    DirectBuffer value = new DirectBuffer(ByteBuffer.allocateDirect(bytes.length));
+    key.putBytes(0, bytes);
+    value.putBytes(0, bytes);
+    return new KeyValue(key, value);
+  }
+
   @Test(expected = NullPointerException.class)
   public void testPutException() throws InterruptedException {
     db.put(Observable.just((KeyValue) null)).toBlocking().first();
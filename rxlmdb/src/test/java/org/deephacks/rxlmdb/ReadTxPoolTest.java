@@ -0,0 +1,78 @@
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.Transaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rx.Observable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.deephacks.rxlmdb.Fixture.*;
+import static org.deephacks.rxlmdb.RxObservables.toStreamBlocking;
+
+public class ReadTxPoolTest {
+  RxLmdb lmdb;
+  RxDb db;
+
+  @Before
+  public void before() {
+    lmdb = RxLmdb.builder().maxReaders(8).readTxPool(16).build();
+    db = lmdb.dbBuilder().build();
+  }
+
+  @After
+  public void after() {
+    db.close();
+    lmdb.close();
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    RxLmdb other = RxLmdb.tmp();
+    assertThat(other.readTxPool).isNull();
+    other.close();
+  }
+
+  @Test
+  public void testRenew() {
+    RxTx tx = lmdb.readTx();
+    Transaction transaction = tx.tx;
+    tx.commit();
+    // ending twice must not give the transaction back twice
+    tx.abort();
+    assertThat(lmdb.readTxPool.idle()).isEqualTo(1);
+    db.put(values[0]);
+    tx = lmdb.readTx();
+    assertThat(tx.tx).isSameAs(transaction);
+    // a renewed transaction see writes committed since it was reset
+    assertThat(db.get(tx, __1)).isEqualTo(__1);
+    tx.close();
+  }
+
+  @Test
+  public void testBoundedByMaxReaders() {
+    assertThat(lmdb.readTxPool.capacity).isEqualTo(4);
+    List<RxTx> txs = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      txs.add(lmdb.readTx());
+    }
+    txs.forEach(RxTx::abort);
+    assertThat(lmdb.readTxPool.idle()).isEqualTo(4);
+  }
+
+  /**
+   * Many more short reads than reader slots.
+   */
+  @Test
+  public void testManyReads() {
+    db.put(Observable.from(_1_to_9));
+    for (int i = 0; i < 1000; i++) {
+      assertThat(toStreamBlocking(db.scan(KeyRange.forward())).count()).isEqualTo(9L);
+      assertThat(db.get(Observable.just(__1)).toBlocking().first().value()).isEqualTo(__1);
+    }
+    assertThat(lmdb.readTxPool.idle()).isAtMost(4);
+  }
+}
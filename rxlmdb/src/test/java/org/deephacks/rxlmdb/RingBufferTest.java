@@ -0,0 +1,76 @@
+package org.deephacks.rxlmdb;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class RingBufferTest {
+
+  @Test
+  public void testCapacityPowerOfTwo() {
+    assertThat(new RingBuffer<>(5, AtomicLong::new).capacity()).isEqualTo(8);
+    assertThat(new RingBuffer<>(8, AtomicLong::new).capacity()).isEqualTo(8);
+  }
+
+  @Test
+  public void testFull() {
+    RingBuffer<AtomicLong> ring = new RingBuffer<>(2, AtomicLong::new);
+    ring.publish(ring.tryClaim());
+    ring.publish(ring.tryClaim());
+    assertThat(ring.tryClaim()).isEqualTo(-1L);
+    List<AtomicLong> list = new ArrayList<>();
+    assertThat(ring.drain(list, 1)).isEqualTo(1);
+    // not free until released
+    assertThat(ring.tryClaim()).isEqualTo(-1L);
+    ring.release(1);
+    assertThat(ring.tryClaim()).isEqualTo(2L);
+  }
+
+  @Test
+  public void testDrainStopAtUnpublished() {
+    RingBuffer<AtomicLong> ring = new RingBuffer<>(4, AtomicLong::new);
+    long first = ring.tryClaim();
+    long second = ring.tryClaim();
+    ring.publish(second);
+    List<AtomicLong> list = new ArrayList<>();
+    assertThat(ring.drain(list, 4)).isEqualTo(0);
+    ring.publish(first);
+    assertThat(ring.drain(list, 4)).isEqualTo(2);
+  }
+
+  @Test
+  public void testMultipleProducers() throws InterruptedException {
+    int producers = 4;
+    int writes = 100_000;
+    RingBuffer<AtomicLong> ring = new RingBuffer<>(64, AtomicLong::new);
+    CountDownLatch latch = new CountDownLatch(producers);
+    for (int i = 0; i < producers; i++) {
+      new Thread(() -> {
+        for (int j = 0; j < writes; j++) {
+          long seq = ring.claim(WaitStrategy.YIELD);
+          ring.get(seq).set(1);
+          ring.publish(seq);
+        }
+        latch.countDown();
+      }).start();
+    }
+    long sum = 0;
+    List<AtomicLong> list = new ArrayList<>();
+    while (sum < producers * writes) {
+      int n = ring.drain(list, 16);
+      for (AtomicLong value : list) {
+        sum += value.getAndSet(0);
+      }
+      list.clear();
+      ring.release(n);
+    }
+    latch.await();
+    assertThat(sum).isEqualTo((long) producers * writes);
+    assertThat(ring.isEmpty()).isTrue();
+  }
+}
@@ -0,0 +1,89 @@
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.LMDBException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.deephacks.rxlmdb.Fixture.*;
+
+public class SnapshotTest {
+  RxLmdb lmdb;
+
+  @After
+  public void after() {
+    lmdb.close();
+  }
+
+  @Test
+  public void testSnapshot() {
+    lmdb = RxLmdb.tmp();
+    RxDb db = lmdb.dbBuilder().build();
+    db.put(values[0]);
+    Snapshot snapshot = lmdb.snapshot(1, TimeUnit.MINUTES);
+    db.put(values[1]);
+    assertThat(db.get(snapshot.tx(), __1)).isEqualTo(__1);
+    assertThat(db.get(snapshot.tx(), __2)).isNull();
+    assertThat(snapshot.getOwner()).isEqualTo(Thread.currentThread().getName());
+    snapshot.close();
+    assertThat(snapshot.isExpired()).isTrue();
+  }
+
+  @Test
+  public void testLeaseExpired() throws InterruptedException {
+    lmdb = RxLmdb.tmp();
+    Snapshot expired = lmdb.snapshot(10, TimeUnit.MILLISECONDS);
+    Snapshot renewed = lmdb.snapshot(10, TimeUnit.MILLISECONDS);
+    renewed.renew(1, TimeUnit.MINUTES);
+    Thread.sleep(50);
+    lmdb.readerCheck();
+    assertThat(expired.isExpired()).isTrue();
+    assertThat(renewed.isExpired()).isFalse();
+    assertThat(renewed.tx()).isNotNull();
+    try {
+      expired.tx();
+      throw new AssertionError("expected lease to expire");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    // closed by the environment
+  }
+
+  @Test
+  public void testExpiredNotReused() throws InterruptedException {
+    lmdb = RxLmdb.tmp();
+    RxDb db = lmdb.dbBuilder().build();
+    db.put(values[0]);
+    Snapshot snapshot = lmdb.snapshot(10, TimeUnit.MILLISECONDS);
+    RxTx held = snapshot.tx();
+    Thread.sleep(50);
+    lmdb.readerCheck();
+    assertThat(snapshot.isExpired()).isTrue();
+    // the monitor leave the transaction to the owner
+    assertThat(db.get(held, __1)).isEqualTo(__1);
+    snapshot.close();
+    try {
+      db.get(held, __1);
+      throw new AssertionError("expected the transaction to be aborted");
+    } catch (LMDBException e) {
+      // expected
+    }
+    RxTx next = lmdb.readTx();
+    assertThat(next.tx).isNotSameAs(held.tx);
+    assertThat(db.get(next, __1)).isEqualTo(__1);
+    next.close();
+  }
+
+  @Test
+  public void testTrackReaders() {
+    lmdb = RxLmdb.builder().maxReaderAge(1, TimeUnit.MILLISECONDS).build();
+    RxTx tx = lmdb.readTx();
+    assertThat(lmdb.getReaders()).containsExactly(tx);
+    assertThat(tx.getOwner()).isEqualTo(Thread.currentThread().getName());
+    assertThat(lmdb.readerCheck()).isEqualTo(0);
+    tx.abort();
+    assertThat(lmdb.getReaders()).isEmpty();
+  }
+}
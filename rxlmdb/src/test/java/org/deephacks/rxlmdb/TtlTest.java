@@ -0,0 +1,122 @@
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.ByteUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rx.Observable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.deephacks.rxlmdb.Fixture.*;
+import static org.deephacks.rxlmdb.RxObservables.toStreamBlocking;
+
+public class TtlTest {
+  RxLmdb lmdb;
+  RxDb db;
+
+  @Before
+  public void before() {
+    lmdb = RxLmdb.builder()
+      .size(64, ByteUnit.MEBIBYTES)
+      .maxDbs(12)
+      .expirySweep(10, TimeUnit.MILLISECONDS, 100)
+      .build();
+    db = lmdb.dbBuilder().name("sessions").ttl().build();
+  }
+
+  @After
+  public void after() {
+    db.close();
+    lmdb.close();
+  }
+
+  @Test
+  public void testDeleteExpired() throws InterruptedException {
+    db.put(new KeyValue(__1, __1), 1, TimeUnit.MILLISECONDS);
+    db.put(new KeyValue(__2, __2), 1, TimeUnit.HOURS);
+    db.put(new KeyValue(__3, __3), 1, TimeUnit.MILLISECONDS);
+    // written again without TTL
+    db.put(new KeyValue(__3, __3));
+    // TTL extended
+    db.put(new KeyValue(__4, __4), 1, TimeUnit.MILLISECONDS);
+    db.put(new KeyValue(__4, __4), 1, TimeUnit.HOURS);
+    db.put(new KeyValue(__5, __5));
+    Thread.sleep(5);
+    db.deleteExpired();
+    assertThat(db.get(__1)).isNull();
+    assertThat(db.get(__2)).isEqualTo(__2);
+    assertThat(db.get(__3)).isEqualTo(__3);
+    assertThat(db.get(__4)).isEqualTo(__4);
+    assertThat(db.get(__5)).isEqualTo(__5);
+  }
+
+  @Test
+  public void testDeleteClearTtl() throws InterruptedException {
+    db.put(new KeyValue(__1, __1), 50, TimeUnit.MILLISECONDS);
+    db.put(new KeyValue(__2, __2), 50, TimeUnit.MILLISECONDS);
+    db.put(new KeyValue(__3, __3), 50, TimeUnit.MILLISECONDS);
+    db.delete(__1);
+    db.delete(KeyRange.range(__2, __2));
+    db.deleteAsync(__3).toBlocking().first();
+    // update and compare-and-set keep the TTL of existing keys
+    db.update(__1, value -> __6).toBlocking().first();
+    db.compareAndSet(__2, null, __7).toBlocking().first();
+    db.update(__3, value -> __8).toBlocking().first();
+    Thread.sleep(100);
+    assertThat(db.deleteExpired()).isEqualTo(0L);
+    assertThat(db.get(__1)).isEqualTo(__6);
+    assertThat(db.get(__2)).isEqualTo(__7);
+    assertThat(db.get(__3)).isEqualTo(__8);
+  }
+
+  @Test
+  public void testSweepChunks() throws InterruptedException {
+    RxTx tx = lmdb.writeTx();
+    for (int i = 0; i < 1050; i++) {
+      db.put(tx, kv(i, i), 1, TimeUnit.MILLISECONDS);
+    }
+    tx.commit();
+    db.put(new KeyValue(__1, __1), 1, TimeUnit.HOURS);
+    Thread.sleep(5);
+    // in case the background sweeper got there first
+    long deleted = db.deleteExpired() + lmdb.sweeper().sweep();
+    assertThat(toStreamBlocking(db.scan(KeyRange.forward())).count()).isEqualTo(1L);
+    assertThat(deleted).isAtMost(1050L);
+  }
+
+  @Test
+  public void testBatchBackgroundSweep() throws InterruptedException {
+    List<KeyValue> kvs = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      kvs.add(kv(i, i));
+    }
+    BatchResult result = db.batch(Observable.just(kvs), 50, TimeUnit.MILLISECONDS).toBlocking().last();
+    assertThat(result.isCommitted()).isTrue();
+    db.putAsync(new KeyValue(__1, __1), 1, TimeUnit.HOURS).toBlocking().first();
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (toStreamBlocking(db.scan(KeyRange.forward())).count() > 1 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(toStreamBlocking(db.scan(KeyRange.forward())).count()).isEqualTo(1L);
+    assertThat(db.get(__1)).isEqualTo(__1);
+  }
+
+  @Test
+  public void testTruncate() throws InterruptedException {
+    db.put(new KeyValue(__1, __1), 1, TimeUnit.MILLISECONDS);
+    db.truncate();
+    db.put(new KeyValue(__1, __1));
+    Thread.sleep(5);
+    db.deleteExpired();
+    assertThat(db.get(__1)).isEqualTo(__1);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testTtlNotEnabled() {
+    lmdb.dbBuilder().name("plain").build().put(values[0], 1, TimeUnit.MINUTES);
+  }
+}
@@ -0,0 +1,110 @@
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.DirectBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rx.Observable;
+import rx.schedulers.Schedulers;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.deephacks.rxlmdb.Fixture.*;
+
+public class UpdateTest {
+  RxDb db;
+  RxLmdb lmdb;
+
+  @Before
+  public void before() {
+    lmdb = RxLmdb.tmp();
+    db = lmdb.dbBuilder().build();
+  }
+
+  @After
+  public void after() {
+    db.close();
+    db.lmdb.close();
+  }
+
+  @Test
+  public void testUpdateCounter() {
+    List<Observable<byte[]>> results = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      results.add(Observable.defer(() -> db.update(__1, UpdateTest::increment))
+        .subscribeOn(Schedulers.io()));
+    }
+    List<byte[]> values = Observable.merge(results).toList().toBlocking().first();
+    assertThat(values).hasSize(100);
+    assertThat(ByteBuffer.wrap(db.get(__1)).getLong()).isEqualTo(100L);
+  }
+
+  @Test
+  public void testUpdateDelete() {
+    db.put(values[0]);
+    assertThat(db.update(__1, value -> null).toBlocking().first()).isNull();
+    assertThat(db.get(__1)).isNull();
+    // delete a missing key
+    assertThat(db.update(__2, value -> null).toBlocking().first()).isNull();
+  }
+
+  @Test
+  public void testUpdateError() {
+    Observable<byte[]> failed = db.update(__1, value -> {
+      throw new IllegalArgumentException();
+    });
+    Observable<byte[]> updated = db.update(__2, UpdateTest::increment);
+    try {
+      failed.toBlocking().first();
+      throw new AssertionError("expected failure");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertThat(updated.toBlocking().first()).isEqualTo(db.get(__2));
+    assertThat(db.get(__1)).isNull();
+  }
+
+  @Test
+  public void testUpdateTx() {
+    RxTx tx = lmdb.writeTx();
+    db.update(tx, __1, UpdateTest::increment);
+    db.update(tx, __1, UpdateTest::increment);
+    tx.commit();
+    assertThat(ByteBuffer.wrap(db.get(__1)).getLong()).isEqualTo(2L);
+  }
+
+  @Test
+  public void testPutIfAbsent() {
+    assertThat(db.putIfAbsent(new KeyValue(__1, __1)).toBlocking().first()).isTrue();
+    assertThat(db.putIfAbsent(new KeyValue(__1, __2)).toBlocking().first()).isFalse();
+    assertThat(db.putIfAbsent(PutTest.offHeap(__1)).toBlocking().first()).isFalse();
+    assertThat(db.get(__1)).isEqualTo(__1);
+    RxTx tx = lmdb.writeTx();
+    assertThat(db.putIfAbsent(tx, new KeyValue(__1, __2))).isFalse();
+    assertThat(db.putIfAbsent(tx, PutTest.offHeap(__2))).isTrue();
+    tx.commit();
+    assertThat(db.get(__2)).isEqualTo(__2);
+  }
+
+  @Test
+  public void testCompareAndSet() {
+    assertThat(db.compareAndSet(__1, __1, __2).toBlocking().first()).isFalse();
+    assertThat(db.compareAndSet(__1, null, __1).toBlocking().first()).isTrue();
+    assertThat(db.compareAndSet(__1, null, __2).toBlocking().first()).isFalse();
+    assertThat(db.compareAndSet(__1, __2, __3).toBlocking().first()).isFalse();
+    assertThat(db.compareAndSet(__1, new byte[]{1}, __3).toBlocking().first()).isFalse();
+    assertThat(db.compareAndSet(__1, __1, __2).toBlocking().first()).isTrue();
+    assertThat(db.get(__1)).isEqualTo(__2);
+    assertThat(db.compareAndSet(__1, __2, null).toBlocking().first()).isTrue();
+    assertThat(db.get(__1)).isNull();
+  }
+
+  static byte[] increment(DirectBuffer value) {
+    long current = value == null ? 0 : value.getLong(0, ByteOrder.BIG_ENDIAN);
+    return ByteBuffer.allocate(8).putLong(current + 1).array();
+  }
+}
@@ -0,0 +1,172 @@
+package org.deephacks.rxlmdb;
+
+import org.fusesource.lmdbjni.ByteUnit;
+import org.fusesource.lmdbjni.DirectBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rx.Observable;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.deephacks.rxlmdb.Fixture.*;
+import static org.deephacks.rxlmdb.RxObservables.toStreamBlocking;
+
+public class WriteBufferTest {
+  RxLmdb lmdb;
+  RxDb db;
+
+  @Before
+  public void before() {
+    lmdb = RxLmdb.tmp();
+    db = lmdb.dbBuilder().writeBuffer(1, ByteUnit.MEBIBYTES).build();
+  }
+
+  @After
+  public void after() {
+    db.close();
+    lmdb.close();
+  }
+
+  @Test
+  public void testPutGetDelete() {
+    db.put(values[0]);
+    assertThat(db.get(__1)).isEqualTo(__1);
+    // not yet in LMDB
+    assertThat(db.db.get(__1)).isNull();
+    assertThat(db.delete(__1)).isTrue();
+    assertThat(db.get(__1)).isNull();
+    assertThat(db.delete(__2)).isFalse();
+    db.flush();
+    assertThat(db.db.get(__1)).isNull();
+
+    db.put(values[1]);
+    db.flush();
+    assertThat(db.db.get(__2)).isEqualTo(__2);
+    assertThat(db.delete(__2)).isTrue();
+    assertThat(db.get(__2)).isNull();
+    RxTx tx = lmdb.readTx();
+    assertThat(db.get(tx, __2)).isNull();
+    tx.abort();
+    db.flush();
+    assertThat(db.db.get(__2)).isNull();
+  }
+
+  @Test
+  public void testScanMerge() {
+    // odd keys in LMDB, even keys buffered
+    db.put(Observable.just(values[0], values[2], values[4], values[6], values[8]));
+    db.put(values[1]);
+    db.put(values[3]);
+    db.put(values[5]);
+    db.put(values[7]);
+    db.put(new KeyValue(__3, _3));
+    db.delete(__5);
+    assertThat(scan(KeyRange.forward())).isEqualTo("1,2,3,4,6,7,8,9");
+    assertThat(scan(KeyRange.backward())).isEqualTo("9,8,7,6,4,3,2,1");
+    assertThat(scan(KeyRange.range(__2, __6))).isEqualTo("2,3,4,6");
+    assertThat(scan(KeyRange.range(__7, __3))).isEqualTo("7,6,4,3");
+    assertThat(scan(KeyRange.atLeast(__6))).isEqualTo("6,7,8,9");
+    assertThat(scan(KeyRange.atMost(__2))).isEqualTo("1,2");
+    // the buffered value wins
+    assertThat(db.get(__3)).isEqualTo(_3);
+    db.flush();
+    assertThat(scan(KeyRange.forward())).isEqualTo("1,2,3,4,6,7,8,9");
+    assertThat(db.get(__3)).isEqualTo(_3);
+  }
+
+  @Test
+  public void testFlushOnBudget() throws InterruptedException {
+    RxDb small = lmdb.dbBuilder().name("small").writeBuffer(64, ByteUnit.BYTES).build();
+    for (int i = 0; i < 100; i++) {
+      small.put(kv(i, i));
+    }
+    // flushed in the background
+    for (int i = 0; i < 100 && small.db.get(kv(0, 0).key()) == null; i++) {
+      Thread.sleep(10);
+    }
+    // most entries have been flushed and the rest are merged into scans
+    assertThat(small.db.get(kv(0, 0).key())).isEqualTo(kv(0, 0).value());
+    assertThat(toStreamBlocking(small.scan(KeyRange.forward())).count()).isEqualTo(100L);
+    small.flush();
+    for (int i = 0; i < 100; i++) {
+      assertThat(small.db.get(kv(i, i).key())).isEqualTo(kv(i, i).value());
+    }
+    small.close();
+  }
+
+  @Test
+  public void testWriteTxFlush() {
+    db.put(values[0]);
+    RxTx tx = lmdb.writeTx();
+    assertThat(db.db.get(tx.tx, __1)).isEqualTo(__1);
+    tx.abort();
+  }
+
+  @Test
+  public void testAtomicBatchFlush() {
+    db.put(new KeyValue(__1, __1));
+    lmdb.batch(Observable.just(Arrays.asList(new DbKeyValue(db, new KeyValue(__1, __2)))))
+      .toBlocking().first();
+    assertThat(db.get(__1)).isEqualTo(__2);
+    db.flush();
+    assertThat(db.db.get(__1)).isEqualTo(__2);
+  }
+
+  @Test
+  public void testFlushOnClose() {
+    RxDb other = lmdb.dbBuilder().name("other").writeBuffer(1, ByteUnit.MEBIBYTES).build();
+    other.put(values[0]);
+    other.close();
+    RxDb reopened = lmdb.dbBuilder().name("other").build();
+    assertThat(reopened.get(__1)).isEqualTo(__1);
+    reopened.close();
+  }
+
+  /**
+   * A read transaction started before a flush still find the flushed keys.
+   */
+  @Test
+  public void testReadTxOlderThanFlush() {
+    RxTx tx = lmdb.readTx();
+    db.put(values[0]);
+    assertThat(db.get(tx, __1)).isEqualTo(__1);
+    db.flush();
+    assertThat(db.get(tx, __1)).isEqualTo(__1);
+    assertThat(toStreamBlocking(db.scan(tx, KeyRange.forward())).count()).isEqualTo(1L);
+    tx.abort();
+    tx = lmdb.readTx();
+    assertThat(db.get(tx, __1)).isEqualTo(__1);
+    tx.abort();
+  }
+
+  @Test
+  public void testArena() {
+    WriteBuffer.Arena arena = new WriteBuffer.Arena(WriteBuffer.MIN_CHUNK_SIZE);
+    DirectBuffer first = arena.copy(new KeyValue(__1, new byte[]{1, 2, 3}));
+    DirectBuffer second = arena.copy(PutTest.offHeap(__2));
+    DirectBuffer large = arena.allocate(WriteBuffer.MIN_CHUNK_SIZE);
+    assertThat(first.capacity()).isEqualTo(3);
+    assertThat(second.capacity()).isEqualTo(__2.length);
+    assertThat(large.capacity()).isEqualTo(WriteBuffer.MIN_CHUNK_SIZE);
+    // values are carved from the same chunk next to each other
+    assertThat(second.addressOffset()).isEqualTo(first.addressOffset() + 3);
+    assertThat(toBytes(first)).isEqualTo(new byte[]{1, 2, 3});
+    assertThat(toBytes(second)).isEqualTo(__2);
+  }
+
+  private static byte[] toBytes(DirectBuffer buffer) {
+    byte[] bytes = new byte[buffer.capacity()];
+    buffer.getBytes(0, bytes);
+    return bytes;
+  }
+
+  private String scan(KeyRange range) {
+    return toStreamBlocking(db.scan(range))
+      .map(kv -> String.valueOf(kv.key()[0]))
+      .collect(Collectors.joining(","));
+  }
+}